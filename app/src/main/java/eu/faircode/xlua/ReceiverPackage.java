@@ -46,6 +46,13 @@ public class ReceiverPackage extends BroadcastReceiver {
             int userid = Util.getUserId(uid);
             Context ctx = Util.createContextForUser(context, userid);
 
+            // Update app snapshot
+            Bundle update = new Bundle();
+            update.putString("packageName", packageName);
+            update.putInt("uid", uid);
+            context.getContentResolver()
+                    .call(XProvider.getURI(), "xlua", "updateApp", update);
+
             if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
                 if (!replacing && !packageName.startsWith(BuildConfig.APPLICATION_ID)) {
                     // Initialize app
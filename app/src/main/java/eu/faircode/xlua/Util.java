@@ -113,6 +113,15 @@ class Util {
         return digest.digest(packageInfo.signatures[0].toByteArray());
     }
 
+    static String getSha1(String text) throws Throwable {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        byte[] bytes = digest.digest(text.getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
     static Context createContextForUser(Context context, int userid) throws Throwable {
         if (isVirtualXposed())
             return context;
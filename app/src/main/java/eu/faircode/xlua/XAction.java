@@ -0,0 +1,148 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+
+// Native equivalents of the generic_* scripts
+abstract class XAction {
+    static final String[] NO_VALUES = new String[0];
+
+    private final String function;
+
+    private XAction(String function) {
+        this.function = function;
+    }
+
+    String getFunction() {
+        return this.function;
+    }
+
+    // Returns null if not restricted, else the old and new value to report, if any
+    abstract String[] execute(XParam param) throws Throwable;
+
+    static XAction get(String name) {
+        if (name == null)
+            return null;
+
+        switch (name) {
+            case "block_method":
+                return new XAction("before") {
+                    @Override
+                    String[] execute(XParam param) throws Throwable {
+                        param.setResult(null);
+                        return NO_VALUES;
+                    }
+                };
+            case "null_value":
+                return new FakeValue(null);
+            case "unknown_value":
+                return new FakeValue("unknown");
+            case "country_value":
+                return new FakeValue("xx");
+            case "operator_value":
+                return new FakeValue("00101"); // test network
+            case "mcc_value":
+            case "mnc_value":
+                return new FakeValue(1); // test network
+            case "zero_value":
+                return new XAction("after") {
+                    @Override
+                    String[] execute(XParam param) throws Throwable {
+                        Object result = param.getResult();
+                        if (result instanceof Number && ((Number) result).doubleValue() == 0)
+                            return null;
+
+                        param.setResult(0);
+                        return new String[]{toValue(result), "0"};
+                    }
+                };
+            case "false_value":
+                return new XAction("after") {
+                    @Override
+                    String[] execute(XParam param) throws Throwable {
+                        Object result = param.getResult();
+                        if (result == null || Boolean.FALSE.equals(result))
+                            return null;
+
+                        param.setResult(false);
+                        return new String[]{"true", "false"};
+                    }
+                };
+            case "empty_string_array":
+                return new XAction("after") {
+                    @Override
+                    String[] execute(XParam param) throws Throwable {
+                        Object result = param.getResult();
+                        if (result == null || Array.getLength(result) == 0)
+                            return null;
+
+                        param.setResult(new String[0]);
+                        return NO_VALUES;
+                    }
+                };
+            case "empty_list":
+                return new XAction("after") {
+                    @Override
+                    String[] execute(XParam param) throws Throwable {
+                        Object result = param.getResult();
+                        if (result == null || ((Collection<?>) result).isEmpty())
+                            return null;
+
+                        param.setResult(new ArrayList<>());
+                        return NO_VALUES;
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+
+    // Same as Lua tostring for numbers
+    private static String toValue(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (d == (long) d)
+                return Long.toString((long) d);
+        }
+        return (value == null ? null : value.toString());
+    }
+
+    private static class FakeValue extends XAction {
+        private final Object fake;
+
+        FakeValue(Object fake) {
+            super("after");
+            this.fake = fake;
+        }
+
+        @Override
+        String[] execute(XParam param) throws Throwable {
+            Object result = param.getResult();
+            if (result == null)
+                return null;
+
+            param.setResult(this.fake);
+            return new String[]{toValue(result), toValue(this.fake)};
+        }
+    }
+}
@@ -38,7 +38,9 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -47,6 +49,8 @@ import java.util.zip.ZipFile;
 public class XHook implements Parcelable {
     private final static String TAG = "XLua.XHook";
 
+    private static final Map<String, Pattern> excludePatterns = new HashMap<>();
+
     private boolean builtin = false;
     private String collection;
     private String group;
@@ -66,12 +70,14 @@ public class XHook implements Parcelable {
     private int minApk;
     private int maxApk;
     private String[] excludePackages;
+    private Pattern excludePattern = null;
     private boolean enabled;
     private boolean optional;
     private boolean usage;
     private boolean notify;
 
     private String luaScript;
+    private String action;
 
     private String[] settings;
 
@@ -148,19 +154,35 @@ public class XHook implements Parcelable {
         if (this.excludePackages == null)
             return true;
 
-        boolean included = true;
-        for (String excluded : this.excludePackages)
-            if (Pattern.matches(excluded, packageName)) {
-                included = false;
-                break;
-            }
-        return included;
+        return !this.excludePattern.matcher(packageName).matches();
     }
 
     public boolean isAvailable(int versionCode) {
         return (versionCode >= this.minApk && versionCode <= maxApk);
     }
 
+    // Matches any of the excluded packages in one pass, shared by hooks with the same excludes
+    private static Pattern getExcludePattern(String[] excludePackages) {
+        if (excludePackages == null)
+            return null;
+
+        String key = TextUtils.join(",", excludePackages);
+        synchronized (excludePatterns) {
+            Pattern pattern = excludePatterns.get(key);
+            if (pattern == null) {
+                StringBuilder sb = new StringBuilder();
+                for (String excluded : excludePackages) {
+                    if (sb.length() > 0)
+                        sb.append('|');
+                    sb.append("(?:").append(excluded).append(')');
+                }
+                pattern = Pattern.compile(sb.toString());
+                excludePatterns.put(key, pattern);
+            }
+            return pattern;
+        }
+    }
+
     public boolean isOptional() {
         return this.optional;
     }
@@ -177,6 +199,14 @@ public class XHook implements Parcelable {
         return this.luaScript;
     }
 
+    public String getAction() {
+        return this.action;
+    }
+
+    void clearAction() {
+        this.action = null;
+    }
+
     public void resolveClassName(Context context) {
         if ("android.app.ActivityManager".equals(this.className)) {
             Object service = context.getSystemService(ActivityManager.class);
@@ -245,6 +275,13 @@ public class XHook implements Parcelable {
                     XHook hook = XHook.fromJSONObject(jarray.getJSONObject(i));
                     hook.builtin = true;
 
+                    // Native action for generic scripts
+                    if (hook.action == null && hook.luaScript.startsWith("@generic_")) {
+                        String action = hook.luaScript.substring("@generic_".length());
+                        if (XAction.get(action) != null)
+                            hook.action = action;
+                    }
+
                     // Link script
                     if (hook.luaScript.startsWith("@")) {
                         ZipEntry luaEntry = zipFile.getEntry("assets/" + hook.luaScript.substring(1) + ".lua");
@@ -330,6 +367,8 @@ public class XHook implements Parcelable {
         jroot.put("notify", this.notify);
 
         jroot.put("luaScript", this.luaScript);
+        if (this.action != null)
+            jroot.put("action", this.action);
 
         if (this.settings != null) {
             JSONArray jsettings = new JSONArray();
@@ -375,6 +414,7 @@ public class XHook implements Parcelable {
 
         hook.excludePackages = (jroot.has("excludePackages")
                 ? jroot.getString("excludePackages").split(",") : null);
+        hook.excludePattern = getExcludePattern(hook.excludePackages);
 
         hook.enabled = (jroot.has("enabled") ? jroot.getBoolean("enabled") : true);
         hook.optional = (jroot.has("optional") ? jroot.getBoolean("optional") : false);
@@ -382,6 +422,7 @@ public class XHook implements Parcelable {
         hook.notify = (jroot.has("notify") ? jroot.getBoolean("notify") : false);
 
         hook.luaScript = jroot.getString("luaScript");
+        hook.action = (jroot.has("action") ? jroot.getString("action") : null);
 
         if (jroot.has("settings")) {
             JSONArray jsettings = jroot.getJSONArray("settings");
@@ -461,6 +502,7 @@ public class XHook implements Parcelable {
             dest.writeString(null);
         else
             dest.writeString(this.luaScript);
+        dest.writeString(this.action);
         dest.writeStringArray(this.settings);
     }
 
@@ -482,11 +524,13 @@ public class XHook implements Parcelable {
         this.minApk = in.readInt();
         this.maxApk = in.readInt();
         this.excludePackages = in.createStringArray();
+        this.excludePattern = getExcludePattern(this.excludePackages);
         this.enabled = (in.readByte() != 0);
         this.optional = (in.readByte() != 0);
         this.usage = (in.readByte() != 0);
         this.notify = (in.readByte() != 0);
         this.luaScript = in.readString();
+        this.action = in.readString();
         this.settings = in.createStringArray();
     }
 
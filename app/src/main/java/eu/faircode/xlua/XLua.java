@@ -31,22 +31,37 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Process;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.Bit32Lib;
+import org.luaj.vm2.lib.CoroutineLib;
 import org.luaj.vm2.lib.DebugLib;
 import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TableLib;
 import org.luaj.vm2.lib.VarArgFunction;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
-import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+import org.luaj.vm2.lib.jse.JseIoLib;
+import org.luaj.vm2.lib.jse.JseMathLib;
+import org.luaj.vm2.lib.jse.JseOsLib;
+import org.luaj.vm2.lib.jse.LuajavaLib;
+
+import eu.faircode.xlua.luajc.LuaScripts;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
@@ -57,11 +72,19 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.IXposedHookZygoteInit;
@@ -72,10 +95,27 @@ import de.robv.android.xposed.callbacks.XC_LoadPackage;
 public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
     private static final String TAG = "XLua.Xposed";
 
+    private static final int cInstallThreads = 4;
+
+    private static final long cReportInterval = 1000L; // milliseconds
+    private static final int cReportBatchSize = 50;
+    private static final int cReportQueueSize = 500;
+
+    // Libraries without state, shared read-only by all runtimes
+    private static final String[] cSharedLibraries = new String[]{"bit32", "math", "string", "table"};
+
     private static int version = -1;
-    private Timer timer = null;
+    private long reportInterval = cReportInterval;
+    private boolean reportBatch = true;
+    private int reportQueued = 0;
+    private int reportDropped = 0;
+    private ScheduledExecutorService reporter = null;
+    private ScheduledFuture<?> reportFlush = null;
     private final Map<String, Map<String, Bundle>> queue = new HashMap<>();
 
+    // Resolved fields, members and failures per class loader and signature
+    private static final Map<ClassLoader, Map<String, Object>> resolved = new WeakHashMap<>();
+
     public void initZygote(final IXposedHookZygoteInit.StartupParam startupParam) throws Throwable {
         Log.i(TAG, "initZygote system=" + startupParam.startsSystemServer + " debug=" + BuildConfig.DEBUG);
     }
@@ -140,6 +180,7 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                         IntentFilter ifPackageAdd = new IntentFilter();
                         ifPackageAdd.addAction(Intent.ACTION_PACKAGE_ADDED);
                         ifPackageAdd.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
+                        ifPackageAdd.addAction(Intent.ACTION_PACKAGE_CHANGED);
                         ifPackageAdd.addDataScheme("package");
                         Util.createContextForUser(context, userid).registerReceiver(new ReceiverPackage(), ifPackageAdd);
                     }
@@ -275,125 +316,127 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
     }
 
     private void hookPackage(final XC_LoadPackage.LoadPackageParam lpparam, int uid, final Context context) throws Throwable {
-        // Get assigned hooks
+        // Get assigned hooks, settings and availability in one call
         List<XHook> hooks = new ArrayList<>();
-        Cursor chooks = null;
-        try {
-            chooks = context.getContentResolver()
-                    .query(XProvider.getURI(), new String[]{"xlua.getAssignedHooks2"},
-                            "pkg = ? AND uid = ?", new String[]{lpparam.packageName, Integer.toString(uid)},
-                            null);
-            while (chooks != null && chooks.moveToNext()) {
-                byte[] marshaled = chooks.getBlob(0);
-                Parcel parcel = Parcel.obtain();
-                parcel.unmarshall(marshaled, 0, marshaled.length);
-                parcel.setDataPosition(0);
-                XHook hook = XHook.CREATOR.createFromParcel(parcel);
-                parcel.recycle();
-                hooks.add(hook);
+        final Map<String, byte[]> bytecode = new HashMap<>();
+        final Map<String, String> settings = new HashMap<>();
+        final Map<String, Boolean> available = new HashMap<>();
+        final Map<String, String> hints = new HashMap<>();
+        Integer versionCode = bootstrap(context, lpparam.packageName, uid, hooks, bytecode, available, hints, settings);
+        if (versionCode == null) {
+            // Provider not updated yet: get assigned hooks
+            Cursor chooks = null;
+            try {
+                chooks = context.getContentResolver()
+                        .query(XProvider.getURI(), new String[]{"xlua.getAssignedHooks2"},
+                                "pkg = ? AND uid = ?", new String[]{lpparam.packageName, Integer.toString(uid)},
+                                null);
+                while (chooks != null && chooks.moveToNext()) {
+                    byte[] marshaled = chooks.getBlob(0);
+                    Parcel parcel = Parcel.obtain();
+                    parcel.unmarshall(marshaled, 0, marshaled.length);
+                    parcel.setDataPosition(0);
+                    XHook hook = XHook.CREATOR.createFromParcel(parcel);
+                    parcel.recycle();
+                    hooks.add(hook);
+
+                    // Precompiled script
+                    if (chooks.getColumnCount() > 2 && !chooks.isNull(2))
+                        bytecode.put(hook.getId(), chooks.getBlob(2));
+                }
+            } finally {
+                if (chooks != null)
+                    chooks.close();
             }
-        } finally {
-            if (chooks != null)
-                chooks.close();
-        }
 
-        final Map<String, String> settings = new HashMap<>();
+            // Get global settings
+            Cursor csettings1 = null;
+            try {
+                csettings1 = context.getContentResolver()
+                        .query(XProvider.getURI(), new String[]{"xlua.getSettings"},
+                                "pkg = ? AND uid = ?", new String[]{"global", Integer.toString(uid)},
+                                null);
+                while (csettings1 != null && csettings1.moveToNext())
+                    settings.put(csettings1.getString(0), csettings1.getString(1));
+            } finally {
+                if (csettings1 != null)
+                    csettings1.close();
+            }
 
-        // Get global settings
-        Cursor csettings1 = null;
-        try {
-            csettings1 = context.getContentResolver()
-                    .query(XProvider.getURI(), new String[]{"xlua.getSettings"},
-                            "pkg = ? AND uid = ?", new String[]{"global", Integer.toString(uid)},
-                            null);
-            while (csettings1 != null && csettings1.moveToNext())
-                settings.put(csettings1.getString(0), csettings1.getString(1));
-        } finally {
-            if (csettings1 != null)
-                csettings1.close();
+            // Get app settings
+            Cursor csettings2 = null;
+            try {
+                csettings2 = context.getContentResolver()
+                        .query(XProvider.getURI(), new String[]{"xlua.getSettings"},
+                                "pkg = ? AND uid = ?", new String[]{lpparam.packageName, Integer.toString(uid)},
+                                null);
+                while (csettings2 != null && csettings2.moveToNext())
+                    settings.put(csettings2.getString(0), csettings2.getString(1));
+            } finally {
+                if (csettings2 != null)
+                    csettings2.close();
+            }
         }
 
-        // Get app settings
-        Cursor csettings2 = null;
+        // Get report flush interval
+        String interval = settings.get("report_interval");
+        if (interval != null)
+            try {
+                reportInterval = Math.max(0, Long.parseLong(interval));
+            } catch (NumberFormatException ex) {
+                Log.w(TAG, "Invalid report interval=" + interval);
+            }
+
+        // Prepare hooks in parallel
+        PackageInfo pi = null;
+        final ClassLoader loader = context.getClassLoader();
+        final Map<ScriptHolder, Prototype> scriptPrototype = new ConcurrentHashMap<>();
+        List<Future<HookTarget>> targets = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(cInstallThreads, Runtime.getRuntime().availableProcessors())));
         try {
-            csettings2 = context.getContentResolver()
-                    .query(XProvider.getURI(), new String[]{"xlua.getSettings"},
-                            "pkg = ? AND uid = ?", new String[]{lpparam.packageName, Integer.toString(uid)},
-                            null);
-            while (csettings2 != null && csettings2.moveToNext())
-                settings.put(csettings2.getString(0), csettings2.getString(1));
+            for (final XHook hook : hooks) {
+                Boolean isAvailable = available.get(hook.getId());
+                if (isAvailable == null) {
+                    if (pi == null)
+                        pi = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+                    isAvailable = hook.isAvailable(pi.versionCode);
+                }
+                if (isAvailable)
+                    targets.add(executor.submit(new Callable<HookTarget>() {
+                        @Override
+                        public HookTarget call() {
+                            return prepareHook(hook, bytecode.get(hook.getId()), hints.get(hook.getId()), scriptPrototype, loader);
+                        }
+                    }));
+            }
         } finally {
-            if (csettings2 != null)
-                csettings2.close();
+            executor.shutdown();
         }
 
-        Map<ScriptHolder, Prototype> scriptPrototype = new HashMap<>();
-
         // Apply hooks
-        PackageInfo pi = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-        for (final XHook hook : hooks)
+        for (Future<HookTarget> future : targets) {
+            final HookTarget target = future.get();
+            final XHook hook = target.hook;
             try {
-                if (!hook.isAvailable(pi.versionCode))
-                    continue;
+                if (target.ex != null)
+                    throw target.ex;
 
-                long install = SystemClock.elapsedRealtime();
-
-                // Compile script
-                final Prototype compiledScript;
-                ScriptHolder sh = new ScriptHolder(hook.getLuaScript());
-                if (scriptPrototype.containsKey(sh))
-                    compiledScript = scriptPrototype.get(sh);
-                else {
-                    InputStream is = new ByteArrayInputStream(sh.script.getBytes());
-                    compiledScript = LuaC.instance.compile(is, "script");
-                    scriptPrototype.put(sh, compiledScript);
-                }
-
-                // Get class
-                Class<?> cls = Class.forName(hook.getResolvedClassName(), false, context.getClassLoader());
-
-                // Handle field method
-                String methodName = hook.getMethodName();
-                if (methodName != null) {
-                    String[] m = methodName.split(":");
-                    if (m.length > 1) {
-                        Field field = cls.getField(m[0]);
-                        Object obj = field.get(null);
-                        cls = obj.getClass();
-                    }
-                    methodName = m[m.length - 1];
-                }
-
-                // Get parameter types
-                String[] p = hook.getParameterTypes();
-                final Class<?>[] paramTypes = new Class[p.length];
-                for (int i = 0; i < p.length; i++)
-                    paramTypes[i] = resolveClass(p[i], context.getClassLoader());
-
-                // Get return type
-                final Class<?> returnType = (hook.getReturnType() == null ? null :
-                        resolveClass(hook.getReturnType(), context.getClassLoader()));
-
-                if (methodName != null && methodName.startsWith("#")) {
-                    // Get field
-                    Field field = resolveField(cls, methodName.substring(1), returnType);
-                    field.setAccessible(true);
-
-                    if (paramTypes.length > 0)
-                        throw new NoSuchFieldException("Field with parameters");
+                long install = SystemClock.elapsedRealtimeNanos();
 
+                if (target.field != null) {
+                    Field field = target.field;
                     try {
                         long run = SystemClock.elapsedRealtime();
 
                         // Initialize Lua runtime
                         Globals globals = getGlobals(context, hook, settings);
-                        LuaClosure closure = new LuaClosure(compiledScript, globals);
-                        closure.call();
+                        target.load(globals).call();
 
                         // Check if function exists
                         LuaValue func = globals.get("after");
                         if (func.isnil())
-                            return;
+                            continue;
 
                         LuaValue[] args = new LuaValue[]{
                                 CoerceJavaToLua.coerce(hook),
@@ -441,143 +484,34 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                         data.putString("exception", sb.toString());
                         report(context, hook.getId(), "after", "use", data);
                     }
+                } else if (XAction.get(hook.getAction()) != null) {
+                    // Hook method natively
+                    XposedBridge.hookMethod(target.member, new NativeMethodHook(context, hook, target.member, settings));
                 } else {
-                    // Get method
-                    final Member member = resolveMember(cls, methodName, paramTypes);
-
-                    // Check return type
-                    final Class<?> memberReturnType = (methodName == null ? null : ((Method) member).getReturnType());
-                    if (returnType != null && memberReturnType != null && !memberReturnType.isAssignableFrom(returnType))
-                        throw new Throwable("Invalid return type " + memberReturnType + " got " + returnType);
-
                     // Hook method
-                    XposedBridge.hookMethod(member, new XC_MethodHook() {
-                        private final WeakHashMap<Thread, Globals> threadGlobals = new WeakHashMap<>();
-
-                        @Override
-                        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                            execute(param, "before");
-                        }
-
-                        @Override
-                        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                            execute(param, "after");
-                        }
+                    XposedBridge.hookMethod(target.member, new LuaMethodHook(context, hook, target, settings));
+                }
 
-                        // Execute hook
-                        private void execute(MethodHookParam param, String function) {
-                            try {
-                                long run = SystemClock.elapsedRealtime();
-
-                                // Initialize Lua runtime
-                                LuaValue func;
-                                LuaValue[] args;
-                                synchronized (threadGlobals) {
-                                    Thread thread = Thread.currentThread();
-                                    if (!threadGlobals.containsKey(thread))
-                                        threadGlobals.put(thread, getGlobals(context, hook, settings));
-                                    Globals globals = threadGlobals.get(thread);
-
-                                    // Define functions
-                                    LuaClosure closure = new LuaClosure(compiledScript, globals);
-                                    closure.call();
-
-                                    // Check if function exists
-                                    func = globals.get(function);
-                                    if (func.isnil())
-                                        return;
-
-                                    // Build arguments
-                                    args = new LuaValue[]{
-                                            CoerceJavaToLua.coerce(hook),
-                                            CoerceJavaToLua.coerce(new XParam(context, param, settings))
-                                    };
-                                }
-
-                                // Run function
-                                Varargs result = func.invoke(args);
-
-                                // Report use
-                                boolean restricted = result.arg1().checkboolean();
-                                if (restricted && hook.doUsage()) {
-                                    Bundle data = new Bundle();
-                                    data.putString("function", function);
-                                    data.putInt("restricted", restricted ? 1 : 0);
-                                    data.putLong("duration", SystemClock.elapsedRealtime() - run);
-                                    if (result.narg() > 1) {
-                                        data.putString("old", result.isnil(2) ? null : result.checkjstring(2));
-                                        data.putString("new", result.isnil(3) ? null : result.checkjstring(3));
-                                    }
-                                    report(context, hook.getId(), function, "use", data);
-                                }
-                            } catch (Throwable ex) {
-                                synchronized (threadGlobals) {
-                                    threadGlobals.remove(Thread.currentThread());
-                                }
-
-                                StringBuilder sb = new StringBuilder();
-
-                                sb.append("Exception:\n");
-                                sb.append(Log.getStackTraceString(ex));
-                                sb.append("\n");
-
-                                sb.append("\nPackage:\n");
-                                sb.append(context.getPackageName());
-                                sb.append(':');
-                                sb.append(Integer.toString(context.getApplicationInfo().uid));
-                                sb.append("\n");
-
-                                sb.append("\nMethod:\n");
-                                sb.append(function);
-                                sb.append(' ');
-                                sb.append(member.toString());
-                                sb.append("\n");
-
-                                sb.append("\nArguments:\n");
-                                if (param.args == null)
-                                    sb.append("null\n");
-                                else
-                                    for (int i = 0; i < param.args.length; i++) {
-                                        sb.append(i);
-                                        sb.append(": ");
-                                        if (param.args[i] == null)
-                                            sb.append("null");
-                                        else {
-                                            sb.append(param.args[i].toString());
-                                            sb.append(" (");
-                                            sb.append(param.args[i].getClass().getName());
-                                            sb.append(')');
-                                        }
-                                        sb.append("\n");
-                                    }
-
-                                sb.append("\nReturn:\n");
-                                if (param.getResult() == null)
-                                    sb.append("null");
-                                else {
-                                    sb.append(param.getResult().toString());
-                                    sb.append(" (");
-                                    sb.append(param.getResult().getClass().getName());
-                                    sb.append(')');
-                                }
-                                sb.append("\n");
-
-                                Log.e(TAG, sb.toString());
-
-                                // Report use error
-                                Bundle data = new Bundle();
-                                data.putString("function", function);
-                                data.putString("exception", sb.toString());
-                                report(context, hook.getId(), function, "use", data);
-                            }
-                        }
-                    });
+                // Remember where the member was found for the next launch
+                if (target.member != null && versionCode != null && versionCode >= 0) {
+                    String hint = getHint(target.member);
+                    if (!hint.equals(hints.get(hook.getId()))) {
+                        Bundle data = new Bundle();
+                        data.putInt("version", versionCode);
+                        data.putString("member", hint);
+                        report(context, hook.getId(), null, "hint", data);
+                    }
                 }
 
                 // Report install
                 if (BuildConfig.DEBUG) {
+                    long hooked = (SystemClock.elapsedRealtimeNanos() - install) / 1000;
                     Bundle data = new Bundle();
-                    data.putLong("duration", SystemClock.elapsedRealtime() - install);
+                    data.putLong("duration", (target.compile + target.resolve + hooked) / 1000);
+                    data.putLong("compile_us", target.compile);
+                    data.putLong("resolve_us", target.resolve);
+                    data.putLong("hook_us", hooked);
+                    data.putString("resolved", target.resolved);
                     report(context, hook.getId(), null, "install", data);
                 }
             } catch (Throwable ex) {
@@ -597,6 +531,317 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                     report(context, hook.getId(), null, "install", data);
                 }
             }
+        }
+    }
+
+    // Get hooks, bytecode, availability, hints and settings in one provider call
+    private static Integer bootstrap(
+            Context context, String packageName, int uid,
+            List<XHook> hooks, Map<String, byte[]> bytecode, Map<String, Boolean> available,
+            Map<String, String> hints, Map<String, String> settings) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver()
+                    .query(XProvider.getURI(), new String[]{"xlua.bootstrap"},
+                            "pkg = ? AND uid = ?", new String[]{packageName, Integer.toString(uid)},
+                            null);
+            if (cursor == null || !cursor.moveToFirst())
+                return null;
+
+            byte[] marshaled = cursor.getBlob(0);
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(marshaled, 0, marshaled.length);
+                parcel.setDataPosition(0);
+
+                int versionCode = parcel.readInt();
+
+                // Hooks with bytecode are marshalled once per app by the provider
+                byte[] payload = parcel.createByteArray();
+                Parcel hparcel = Parcel.obtain();
+                try {
+                    hparcel.unmarshall(payload, 0, payload.length);
+                    hparcel.setDataPosition(0);
+
+                    int count = hparcel.readInt();
+                    for (int i = 0; i < count; i++) {
+                        XHook hook = XHook.CREATOR.createFromParcel(hparcel);
+                        hooks.add(hook);
+
+                        byte[] code = hparcel.createByteArray();
+                        if (code != null)
+                            bytecode.put(hook.getId(), code);
+                    }
+                } finally {
+                    hparcel.recycle();
+                }
+
+                int count = parcel.readInt();
+                for (int i = 0; i < count; i++) {
+                    XHook hook = hooks.get(i);
+
+                    // Version unknown to the provider: check locally
+                    byte flag = parcel.readByte();
+                    if (flag >= 0)
+                        available.put(hook.getId(), flag != 0);
+
+                    String hint = parcel.readString();
+                    if (hint != null)
+                        hints.put(hook.getId(), hint);
+                }
+
+                count = parcel.readInt();
+                for (int i = 0; i < count; i++)
+                    settings.put(parcel.readString(), parcel.readString());
+
+                return versionCode;
+            } finally {
+                parcel.recycle();
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    // Compile script and resolve member, safe to run concurrently
+    HookTarget prepareHook(
+            XHook hook, byte[] bytecode, String hint,
+            Map<ScriptHolder, Prototype> scriptPrototype, ClassLoader loader) {
+        HookTarget target = new HookTarget(hook);
+        try {
+            long start = SystemClock.elapsedRealtimeNanos();
+
+            // Native actions replace the script of methods
+            boolean script = (XAction.get(hook.getAction()) == null);
+            if (script)
+                prepareScript(target, bytecode, scriptPrototype);
+
+            long compiled = SystemClock.elapsedRealtimeNanos();
+            target.compile = (compiled - start) / 1000;
+
+            // Get field or member
+            String signature = hook.getResolvedClassName() + ":" + hook.getMethodName() +
+                    "(" + TextUtils.join(",", hook.getParameterTypes()) + ")" + hook.getReturnType();
+            Map<String, Object> cache;
+            synchronized (resolved) {
+                cache = resolved.get(loader);
+                if (cache == null) {
+                    cache = new HashMap<>();
+                    resolved.put(loader, cache);
+                }
+            }
+
+            Object resolution;
+            synchronized (cache) {
+                resolution = cache.get(signature);
+            }
+            if (resolution == null) {
+                try {
+                    resolution = resolveTarget(hook, hint, loader, target);
+                } catch (Throwable ex) {
+                    resolution = ex;
+                }
+                synchronized (cache) {
+                    cache.put(signature, resolution);
+                }
+            } else
+                target.resolved = "cache";
+
+            if (resolution instanceof Throwable)
+                throw (Throwable) resolution;
+            else if (resolution instanceof Field)
+                target.field = (Field) resolution;
+            else
+                target.member = (Member) resolution;
+
+            target.resolve = (SystemClock.elapsedRealtimeNanos() - compiled) / 1000;
+
+            // Fields always run the script
+            if (!script && target.field != null)
+                prepareScript(target, bytecode, scriptPrototype);
+        } catch (Throwable ex) {
+            target.ex = ex;
+        }
+        return target;
+    }
+
+    private void prepareScript(HookTarget target, byte[] bytecode, Map<ScriptHolder, Prototype> scriptPrototype)
+            throws Throwable {
+        XHook hook = target.hook;
+
+        // Use script translated at build time, debug builds interpret to support the debug library
+        String hash = (BuildConfig.DEBUG ? null : Util.getSha1(hook.getLuaScript()));
+        if (hash != null && LuaScripts.contains(hash))
+            target.compiled = hash;
+        else {
+            // Load precompiled or compile script
+            ScriptHolder sh = new ScriptHolder(hook.getLuaScript());
+            target.script = scriptPrototype.get(sh);
+            if (target.script == null && bytecode != null)
+                try {
+                    target.script = LoadState.undump(new ByteArrayInputStream(bytecode), "script");
+                } catch (Throwable ex) {
+                    Log.w(TAG, "Undump hook=" + hook.getId() + " ex=" + ex);
+                }
+            if (target.script == null) {
+                InputStream is = new ByteArrayInputStream(sh.script.getBytes());
+                target.script = LuaC.instance.compile(is, "script");
+            }
+            scriptPrototype.put(sh, target.script);
+        }
+    }
+
+    private static Object resolveTarget(XHook hook, String hint, ClassLoader loader, HookTarget target) throws Throwable {
+        // Get class
+        Class<?> cls = Class.forName(hook.getResolvedClassName(), false, loader);
+
+        // Handle field method
+        String methodName = hook.getMethodName();
+        if (methodName != null) {
+            String[] m = methodName.split(":");
+            if (m.length > 1) {
+                Field field = cls.getField(m[0]);
+                Object obj = field.get(null);
+                cls = obj.getClass();
+            }
+            methodName = m[m.length - 1];
+        }
+
+        // Get parameter types
+        String[] p = hook.getParameterTypes();
+        Class<?>[] paramTypes = new Class[p.length];
+        for (int i = 0; i < p.length; i++)
+            paramTypes[i] = resolveClass(p[i], loader);
+
+        // Get return type
+        Class<?> returnType = (hook.getReturnType() == null ? null :
+                resolveClass(hook.getReturnType(), loader));
+
+        if (methodName != null && methodName.startsWith("#")) {
+            // Get field
+            Field field = resolveField(cls, methodName.substring(1), returnType);
+            field.setAccessible(true);
+            target.resolved = "walk";
+
+            if (paramTypes.length > 0)
+                throw new NoSuchFieldException("Field with parameters");
+
+            return field;
+        } else {
+            // Get method
+            Member member = (hint == null ? null : resolveHint(cls, methodName, paramTypes, hint, loader));
+            if (member == null) {
+                member = resolveMember(cls, methodName, paramTypes);
+                target.resolved = "walk";
+            } else
+                target.resolved = "hint";
+
+            // Check return type
+            Class<?> memberReturnType = (methodName == null ? null : ((Method) member).getReturnType());
+            if (returnType != null && memberReturnType != null && !memberReturnType.isAssignableFrom(returnType))
+                throw new Throwable("Invalid return type " + memberReturnType + " got " + returnType);
+
+            return member;
+        }
+    }
+
+    private static Member resolveHint(Class<?> cls, String name, Class<?>[] params, String hint, ClassLoader loader) {
+        try {
+            String[] h = hint.split("\\|");
+            if (h.length - 1 != params.length)
+                return null;
+
+            Class<?> declaring = Class.forName(h[0], false, loader);
+            if (!declaring.isAssignableFrom(cls))
+                return null;
+
+            Class<?>[] mparams = new Class[params.length];
+            for (int i = 0; i < params.length; i++) {
+                mparams[i] = resolveClass(h[i + 1], loader);
+                if (!mparams[i].isAssignableFrom(params[i]))
+                    return null;
+            }
+
+            if (name == null)
+                return declaring.getDeclaredConstructor(mparams);
+            else
+                return declaring.getDeclaredMethod(name, mparams);
+        } catch (Throwable ex) {
+            Log.i(TAG, "Stale hint=" + hint + " ex=" + ex);
+            return null;
+        }
+    }
+
+    static String getHint(Member member) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(member.getDeclaringClass().getName());
+        Class<?>[] params = (member instanceof Constructor
+                ? ((Constructor) member).getParameterTypes()
+                : ((Method) member).getParameterTypes());
+        for (Class<?> param : params) {
+            sb.append('|');
+            sb.append(param.getName());
+        }
+        return sb.toString();
+    }
+
+    private void reportError(
+            Context context, XHook hook, String function, Member member, XC_MethodHook.MethodHookParam param, Throwable ex) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Exception:\n");
+        sb.append(Log.getStackTraceString(ex));
+        sb.append("\n");
+
+        sb.append("\nPackage:\n");
+        sb.append(context.getPackageName());
+        sb.append(':');
+        sb.append(Integer.toString(context.getApplicationInfo().uid));
+        sb.append("\n");
+
+        sb.append("\nMethod:\n");
+        sb.append(function);
+        sb.append(' ');
+        sb.append(member.toString());
+        sb.append("\n");
+
+        sb.append("\nArguments:\n");
+        if (param.args == null)
+            sb.append("null\n");
+        else
+            for (int i = 0; i < param.args.length; i++) {
+                sb.append(i);
+                sb.append(": ");
+                if (param.args[i] == null)
+                    sb.append("null");
+                else {
+                    sb.append(param.args[i].toString());
+                    sb.append(" (");
+                    sb.append(param.args[i].getClass().getName());
+                    sb.append(')');
+                }
+                sb.append("\n");
+            }
+
+        sb.append("\nReturn:\n");
+        if (param.getResult() == null)
+            sb.append("null");
+        else {
+            sb.append(param.getResult().toString());
+            sb.append(" (");
+            sb.append(param.getResult().getClass().getName());
+            sb.append(')');
+        }
+        sb.append("\n");
+
+        Log.e(TAG, sb.toString());
+
+        // Report use error
+        Bundle data = new Bundle();
+        data.putString("function", function);
+        data.putString("exception", sb.toString());
+        report(context, hook.getId(), function, "use", data);
     }
 
     private void report(final Context context, String hook, String function, String event, final Bundle data) {
@@ -615,37 +860,98 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
             String key = (function == null ? "*" : function) + ":" + event;
             if (!queue.containsKey(key))
                 queue.put(key, new HashMap<String, Bundle>());
+            if (!queue.get(key).containsKey(hook)) {
+                // Backpressure: drop new usage events while the provider is falling behind
+                if (reportQueued >= cReportQueueSize && "use".equals(event)) {
+                    reportDropped++;
+                    return;
+                }
+                reportQueued++;
+            }
             queue.get(key).put(hook, args);
 
-            if (timer == null) {
-                timer = new Timer();
-                timer.schedule(new TimerTask() {
-                    public void run() {
-                        Log.i(TAG, "Processing event queue package=" + packageName + ":" + uid);
-
-                        List<Bundle> work = new ArrayList<>();
-                        synchronized (queue) {
-                            for (String key : queue.keySet())
-                                for (String hook : queue.get(key).keySet())
-                                    work.add(queue.get(key).get(hook));
-                            queue.clear();
-                            timer = null;
-                        }
-
-                        for (Bundle args : work)
-                            try {
-                                context.getContentResolver()
-                                        .call(XProvider.getURI(), "xlua", "report", args);
-                            } catch (Throwable ex) {
-                                Log.e(TAG, Log.getStackTraceString(ex));
-                                XposedBridge.log(ex);
-                            }
+            if (reporter == null)
+                reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "XLua.Report");
+                        thread.setDaemon(true);
+                        return thread;
                     }
-                }, 1000);
+                });
+
+            Runnable flush = new Runnable() {
+                @Override
+                public void run() {
+                    flushReports(context, packageName, uid);
+                }
+            };
+
+            if (reportFlush == null)
+                reportFlush = reporter.schedule(flush, reportInterval, TimeUnit.MILLISECONDS);
+            else if (reportQueued >= cReportBatchSize && reportFlush.cancel(false))
+                reportFlush = reporter.schedule(flush, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushReports(Context context, String packageName, int uid) {
+        List<Bundle> work = new ArrayList<>();
+        int dropped;
+        synchronized (queue) {
+            for (String key : queue.keySet())
+                for (String hook : queue.get(key).keySet())
+                    work.add(queue.get(key).get(hook));
+            queue.clear();
+            dropped = reportDropped;
+            reportQueued = 0;
+            reportDropped = 0;
+            reportFlush = null;
+        }
+
+        Log.i(TAG, "Processing event queue package=" + packageName + ":" + uid +
+                " events=" + work.size() + " dropped=" + dropped);
+
+        for (int i = 0; i < work.size(); i += cReportBatchSize) {
+            List<Bundle> batch = work.subList(i, Math.min(work.size(), i + cReportBatchSize));
+            try {
+                Bundle result = null;
+                if (reportBatch) {
+                    Bundle args = new Bundle();
+                    args.putParcelableArrayList("events", new ArrayList<>(batch));
+                    result = context.getContentResolver()
+                            .call(XProvider.getURI(), "xlua", "reportBatch", args);
+                }
+
+                // Provider failed or not updated yet
+                if (reportBatch && result == null && !isBatchSupported(context)) {
+                    Log.i(TAG, "Provider does not support reportBatch");
+                    reportBatch = false;
+                }
+
+                if (result == null)
+                    for (Bundle args : batch)
+                        context.getContentResolver()
+                                .call(XProvider.getURI(), "xlua", "report", args);
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+                XposedBridge.log(ex);
             }
         }
     }
 
+    private static boolean isBatchSupported(Context context) {
+        // A provider which predates reportBatch returns null for it, an updated one counts the events
+        try {
+            Bundle args = new Bundle();
+            args.putParcelableArrayList("events", new ArrayList<Bundle>());
+            return (context.getContentResolver()
+                    .call(XProvider.getURI(), "xlua", "reportBatch", args) != null);
+        } catch (Throwable ex) {
+            Log.w(TAG, "Checking reportBatch: " + ex);
+            return true;
+        }
+    }
+
     private static Class<?> resolveClass(String name, ClassLoader loader) throws ClassNotFoundException {
         if ("boolean".equals(name))
             return boolean.class;
@@ -777,34 +1083,122 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         }
     }
 
-    private static Globals getGlobals(Context context, XHook hook, Map<String, String> settings) {
-        Globals globals = JsePlatform.standardGlobals();
-        // base, bit32, coroutine, io, math, os, package, string, table, luajava
+    private static LuaTable library = null;
+
+    // Pure libraries are created once per process and shared read-only by all runtimes
+    private static synchronized LuaTable getLibrary() {
+        if (library == null) {
+            long start = SystemClock.elapsedRealtime();
 
-        if (BuildConfig.DEBUG)
-            globals.load(new DebugLib());
+            // Suspended coroutines keep their frames on the heap instead of a thread each
+            LuaThread.coroutine_mode = LuaThread.COROUTINE_STACKLESS;
+
+            Globals globals = new Globals();
+            globals.load(new PackageLib());
+            globals.load(new Bit32Lib());
+            globals.load(new TableLib());
+            globals.load(new StringLib());
+            globals.load(new JseMathLib());
+
+            LuaTable pure = new LuaTable();
+            for (String name : cSharedLibraries)
+                pure.rawset(name, globals.get(name));
+
+            LuaTable meta = new LuaTable();
+            meta.rawset(LuaValue.INDEX, new LuaReadOnly(pure, new IdentityHashMap<LuaTable, LuaTable>()));
+            library = new LuaReadOnly(meta, new IdentityHashMap<LuaTable, LuaTable>());
+
+            Log.i(TAG, "Standard library created duration=" + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return library;
+    }
+
+    static Globals getGlobals(Context context, XHook hook, Map<String, String> settings) {
+        Globals globals = new LuaLocals(getLibrary());
 
         globals.set("log", new LuaLog(context.getPackageName(), context.getApplicationInfo().uid, hook.getId()));
         globals.set("hook", new LuaHook(context, settings));
 
-        return new LuaLocals(globals);
+        return globals;
     }
 
-    private static class LuaLocals extends Globals {
-        LuaLocals(Globals globals) {
-            this.presize(globals.length(), 0);
-            Varargs entry = globals.next(LuaValue.NIL);
+    private static class LuaReadOnly extends LuaTable {
+        private boolean frozen = false;
+
+        LuaReadOnly(LuaTable table, Map<LuaTable, LuaTable> copies) {
+            copies.put(table, this);
+            this.presize(table.length(), 0);
+            Varargs entry = table.next(LuaValue.NIL);
             while (!entry.arg1().isnil()) {
                 LuaValue key = entry.arg1();
                 LuaValue value = entry.arg(2);
+                if (value.istable()) {
+                    LuaTable copy = copies.get(value);
+                    value = (copy == null ? new LuaReadOnly((LuaTable) value, copies) : copy);
+                }
                 super.rawset(key, value);
-                entry = globals.next(entry.arg1());
+                entry = table.next(entry.arg1());
             }
+            this.frozen = true;
+        }
+
+        @Override
+        public LuaValue setmetatable(LuaValue metatable) {
+            if (frozen)
+                return error("Library is read only: setmetatable");
+            return super.setmetatable(metatable);
+        }
+
+        @Override
+        public void rawset(int key, LuaValue value) {
+            if (frozen)
+                error("Library is read only: " + key + "=" + value);
+            else
+                super.rawset(key, value);
+        }
+
+        @Override
+        public void rawset(LuaValue key, LuaValue value) {
+            if (frozen)
+                error("Library is read only: " + key + "=" + value);
+            else
+                super.rawset(key, value);
+        }
+
+        @Override
+        public void sort(LuaValue comparator) {
+            error("Library is read only: sort");
+        }
+    }
+
+    private static class LuaLocals extends Globals {
+        private boolean frozen = false;
+
+        LuaLocals(LuaTable meta) {
+            // Libraries with state refer to their globals: xpcall, load, require, coroutines
+            load(new JseBaseLib());
+            load(new PackageLib());
+            load(new CoroutineLib());
+            load(new JseIoLib());
+            load(new JseOsLib());
+            load(new LuajavaLib());
+            if (BuildConfig.DEBUG)
+                load(new DebugLib());
+            LoadState.install(this);
+            LuaC.install(this);
+
+            LuaValue loaded = get("package").get("loaded");
+            LuaValue pure = meta.rawget(LuaValue.INDEX);
+            for (String name : cSharedLibraries)
+                loaded.set(name, pure.get(name));
+
+            super.setmetatable(meta);
+            this.frozen = true;
         }
 
         @Override
         public void set(int key, LuaValue value) {
-            if (value.isfunction())
+            if (!frozen || value.isfunction())
                 super.set(key, value);
             else
                 error("Globals not allowed: set " + value);
@@ -812,7 +1206,7 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
 
         @Override
         public void rawset(int key, LuaValue value) {
-            if (value.isfunction())
+            if (!frozen || value.isfunction())
                 super.rawset(key, value);
             else
                 error("Globals not allowed: rawset " + value);
@@ -820,13 +1214,182 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
 
         @Override
         public void rawset(LuaValue key, LuaValue value) {
-            if (value.isfunction())
+            if (!frozen || value.isfunction())
                 super.rawset(key, value);
             else
                 error("Globals not allowed: " + key + "=" + value);
         }
     }
 
+    // Runs the script of a hook on the thread of each invocation
+    class LuaMethodHook extends XC_MethodHook {
+        private final Context context;
+        private final XHook hook;
+        private final HookTarget target;
+        private final Map<String, String> settings;
+        private final LuaValue luaHook;
+
+        // Runtimes are not thread safe, each thread gets its own without a shared lock
+        private final ThreadLocal<LuaRuntime> threadRuntime = new ThreadLocal<>();
+
+        LuaMethodHook(Context context, XHook hook, HookTarget target, Map<String, String> settings) {
+            this.context = context;
+            this.hook = hook;
+            this.target = target;
+            this.settings = settings;
+            this.luaHook = CoerceJavaToLua.coerce(hook);
+        }
+
+        @Override
+        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+            execute(param, "before");
+        }
+
+        @Override
+        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+            execute(param, "after");
+        }
+
+        // Execute hook
+        private void execute(MethodHookParam param, String function) {
+            try {
+                long run = SystemClock.elapsedRealtime();
+
+                // Initialize Lua runtime
+                LuaRuntime runtime = threadRuntime.get();
+                if (runtime == null) {
+                    runtime = new LuaRuntime(target, getGlobals(context, hook, settings));
+                    runtime.bind(luaHook, new XParam(context, target.member, settings));
+                    threadRuntime.set(runtime);
+                }
+
+                // Check if function exists
+                LuaValue func = runtime.getFunction(function);
+                if (func.isnil())
+                    return;
+
+                // Run function
+                Varargs result = runtime.invoke(func, param);
+
+                // Report use
+                boolean restricted = result.arg1().checkboolean();
+                if (restricted && hook.doUsage()) {
+                    Bundle data = new Bundle();
+                    data.putString("function", function);
+                    data.putInt("restricted", restricted ? 1 : 0);
+                    data.putLong("duration", SystemClock.elapsedRealtime() - run);
+                    if (result.narg() > 1) {
+                        data.putString("old", result.isnil(2) ? null : result.checkjstring(2));
+                        data.putString("new", result.isnil(3) ? null : result.checkjstring(3));
+                    }
+                    report(context, hook.getId(), function, "use", data);
+                }
+            } catch (Throwable ex) {
+                threadRuntime.remove();
+                reportError(context, hook, function, target.member, param, ex);
+            }
+        }
+    }
+
+    // Runs the native action of a hook instead of its script
+    class NativeMethodHook extends XC_MethodHook {
+        private final Context context;
+        private final XHook hook;
+        private final Member member;
+        private final Map<String, String> settings;
+        private final XAction action;
+        private final ThreadLocal<XParam> threadParam = new ThreadLocal<>();
+
+        NativeMethodHook(Context context, XHook hook, Member member, Map<String, String> settings) {
+            this.context = context;
+            this.hook = hook;
+            this.member = member;
+            this.settings = settings;
+            this.action = XAction.get(hook.getAction());
+        }
+
+        @Override
+        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+            if ("before".equals(action.getFunction()))
+                execute(param, "before");
+        }
+
+        @Override
+        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+            if ("after".equals(action.getFunction()))
+                execute(param, "after");
+        }
+
+        private void execute(MethodHookParam param, String function) {
+            try {
+                long run = SystemClock.elapsedRealtime();
+
+                XParam xparam = threadParam.get();
+                if (xparam == null) {
+                    xparam = new XParam(context, member, settings);
+                    threadParam.set(xparam);
+                }
+
+                String[] values;
+                MethodHookParam previous = xparam.bind(param);
+                try {
+                    values = action.execute(xparam);
+                } finally {
+                    xparam.bind(previous);
+                }
+
+                // Report use
+                if (values != null && hook.doUsage()) {
+                    Bundle data = new Bundle();
+                    data.putString("function", function);
+                    data.putInt("restricted", 1);
+                    data.putLong("duration", SystemClock.elapsedRealtime() - run);
+                    if (values.length > 0) {
+                        data.putString("old", values[0]);
+                        data.putString("new", values[1]);
+                    }
+                    report(context, hook.getId(), function, "use", data);
+                }
+            } catch (Throwable ex) {
+                reportError(context, hook, function, member, param, ex);
+            }
+        }
+    }
+
+    static class LuaRuntime {
+        private final LuaValue before;
+        private final LuaValue after;
+        XParam param;
+        Varargs args;
+
+        LuaRuntime(HookTarget target, Globals globals) {
+            // Define functions once, the chunk only declares before/after
+            target.load(globals).call();
+            this.before = globals.get("before");
+            this.after = globals.get("after");
+        }
+
+        LuaValue getFunction(String function) {
+            return ("before".equals(function) ? this.before : this.after);
+        }
+
+        // Coerce once, the arguments are reused for every invocation on this thread
+        void bind(LuaValue hook, XParam param) {
+            this.param = param;
+            this.args = LuaValue.varargsOf(hook, CoerceJavaToLua.coerce(param));
+        }
+
+        // Run a function with the parameter rebound to this invocation, restored for nested calls
+        Varargs invoke(LuaValue func, XC_MethodHook.MethodHookParam param) {
+            XC_MethodHook.MethodHookParam previous = this.param.bind(param);
+            try {
+                return func.invoke(this.args);
+            } finally {
+                this.param.bind(previous);
+            }
+        }
+    }
+
     private static class LuaHook extends VarArgFunction {
         private Context context;
         private Map<String, String> settings;
@@ -892,6 +1455,29 @@ public class XLua implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         }
     }
 
+    static class HookTarget {
+        final XHook hook;
+        Prototype script;
+        String compiled;
+        Field field;
+        Member member;
+        Throwable ex;
+        String resolved;
+        long compile;
+        long resolve;
+
+        HookTarget(XHook hook) {
+            this.hook = hook;
+        }
+
+        LuaValue load(Globals globals) {
+            if (this.compiled == null)
+                return new LuaClosure(this.script, globals);
+            else
+                return LuaScripts.load(this.compiled, globals);
+        }
+    }
+
     private class ScriptHolder {
         String script;
 
@@ -24,6 +24,7 @@ import android.util.Log;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
@@ -36,7 +37,7 @@ public class XParam {
 
     private final Context context;
     private final Field field;
-    private final XC_MethodHook.MethodHookParam param;
+    private XC_MethodHook.MethodHookParam param;
     private final Class<?>[] paramTypes;
     private final Class<?> returnType;
     private final Map<String, String> settings;
@@ -61,19 +62,35 @@ public class XParam {
             Context context,
             XC_MethodHook.MethodHookParam param,
             Map<String, String> settings) {
+        this(context, param.method, settings);
+        this.param = param;
+    }
+
+    // Method param, bound to each invocation
+    XParam(
+            Context context,
+            Member member,
+            Map<String, String> settings) {
         this.context = context;
         this.field = null;
-        this.param = param;
-        if (param.method instanceof Constructor) {
-            this.paramTypes = ((Constructor) param.method).getParameterTypes();
+        this.param = null;
+        if (member instanceof Constructor) {
+            this.paramTypes = ((Constructor) member).getParameterTypes();
             this.returnType = null;
         } else {
-            this.paramTypes = ((Method) param.method).getParameterTypes();
-            this.returnType = ((Method) param.method).getReturnType();
+            this.paramTypes = ((Method) member).getParameterTypes();
+            this.returnType = ((Method) member).getReturnType();
         }
         this.settings = settings;
     }
 
+    // Returns the previous invocation to restore for nested calls
+    XC_MethodHook.MethodHookParam bind(XC_MethodHook.MethodHookParam param) {
+        XC_MethodHook.MethodHookParam previous = this.param;
+        this.param = param;
+        return previous;
+    }
+
     @SuppressWarnings("unused")
     public Context getApplicationContext() {
         return this.context;
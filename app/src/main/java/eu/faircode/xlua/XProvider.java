@@ -33,6 +33,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
@@ -42,17 +43,32 @@ import android.os.Parcel;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.compiler.LuaC;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import de.robv.android.xposed.XposedBridge;
@@ -67,6 +83,52 @@ class XProvider {
 
     private static Map<String, XHook> hooks = null;
     private static Map<String, XHook> builtins = null;
+    private static Map<String, byte[]> bytecode = null;
+
+    // user > category > name > value, updated while holding the database write lock
+    private static final Map<Integer, Map<String, Map<String, String>>> settingCache = new HashMap<>();
+    private static long settingHits = 0;
+    private static long settingMisses = 0;
+
+    // package:uid > assigned hooks, guarded by lock
+    private static final Map<String, AssignedHooks> assignedCache = new HashMap<>();
+
+    // user > installed apps, kept current by the package receiver
+    private static final Map<Integer, AppSnapshot> appCache = new HashMap<>();
+    private static long appSequence = 0;
+    private static long appUpdates = 0; // package changes, a snapshot built meanwhile is stale
+
+    // Last assignment change, updated while holding the database write lock
+    private static long changeSequence = 0;
+
+    // Usage log, rolled up per minute, hour and day
+    private final static int cUsageMax = 10000;
+    private final static int cUsageCompact = 1000;
+    private final static int cLogPageSize = 100;
+    private final static long[] cRollupSize = new long[]{60 * 1000L, 3600 * 1000L, 24 * 3600 * 1000L};
+    private final static long[] cRollupKeep = new long[]{24 * 3600 * 1000L, 30 * 24 * 3600 * 1000L, 365 * 24 * 3600 * 1000L};
+    private static int usageAppends = 0;
+
+    // Notifications are built and posted off the reporting binder thread, latest per tag
+    private final static long cNotifyDelay = 1000L;
+    private static ScheduledExecutorService notifier = null;
+    private static ScheduledFuture<?> notifyFlush = null;
+    private static final Map<String, Bundle> notifyQueue = new LinkedHashMap<>();
+
+    // Used by the notifier thread only, except invalidation
+    private static final Map<String, CharSequence> labelCache = new HashMap<>();
+    private static final Map<String, String> groupCache = new HashMap<>();
+
+    // Allowed app IDs, least recently used first
+    private final static int cPermissionCacheSize = 32;
+    private static final Map<Integer, Boolean> permissionCache = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return (size() > cPermissionCacheSize);
+        }
+    };
+    private static long permissionHits = 0;
+    private static long permissionChecks = 0;
 
     final static String cChannelName = "xlua";
 
@@ -114,9 +176,15 @@ class XProvider {
                 case "assignHooks":
                     result = assignHooks(context, extras);
                     break;
+                case "assignHooksBulk":
+                    result = assignHooksBulk(context, extras);
+                    break;
                 case "report":
                     result = report(context, extras);
                     break;
+                case "reportBatch":
+                    result = reportBatch(context, extras);
+                    break;
                 case "getSetting":
                     result = getSetting(context, extras);
                     break;
@@ -129,9 +197,15 @@ class XProvider {
                 case "clearApp":
                     result = clearApp(context, extras);
                     break;
+                case "updateApp":
+                    result = updateApp(context, extras);
+                    break;
                 case "clearData":
                     result = clearData(context, extras);
                     break;
+                case "getStats":
+                    result = getStats(context, extras);
+                    break;
             }
         } catch (IllegalArgumentException ex) {
             throw ex;
@@ -182,9 +256,18 @@ class XProvider {
                 case "getSettings":
                     result = getSettings(context, selection);
                     break;
+                case "bootstrap":
+                    result = getBootstrap(context, selection);
+                    break;
                 case "getLog":
                     result = getLog(context, selection);
                     break;
+                case "getChanges":
+                    result = getChanges(context, selection);
+                    break;
+                case "getUsage":
+                    result = getUsage(context, selection);
+                    break;
             }
         } catch (RemoteException ex) {
             throw ex;
@@ -234,6 +317,7 @@ class XProvider {
 
         // Cache hook
         synchronized (lock) {
+            assignedCache.clear();
             if (hook == null) {
                 if (hooks.containsKey(id) && hooks.get(id).isBuiltin())
                     throw new IllegalArgumentException("builtin");
@@ -244,15 +328,25 @@ class XProvider {
                     XHook builtin = builtins.get(id);
                     // class name is already resolved
                     hooks.put(id, builtin);
-                } else
+                    bytecode.put(id, compileScript(builtin));
+                } else {
                     Log.w(TAG, "Builtin not found id=" + id);
+                    bytecode.remove(id);
+                }
             } else {
                 if (!hook.isBuiltin())
                     Log.i(TAG, "Storing hook id=" + id);
+                // A native action only stands in for the script it was derived from
+                XHook builtin = builtins.get(id);
+                if (hook.getAction() != null && builtin != null &&
+                        !hook.getLuaScript().equals(builtin.getLuaScript()))
+                    hook.clearAction();
                 hook.resolveClassName(context);
                 hooks.put(id, hook);
+                bytecode.put(id, compileScript(hook));
             }
         }
+        touchApps();
 
         // Persist define hook
         if (hook == null || !hook.isBuiltin()) {
@@ -273,6 +367,11 @@ class XProvider {
                             throw new Throwable("Error inserting hook");
                     }
 
+                    // Assignments of the hook changed for getChanges
+                    ContentValues cv = new ContentValues();
+                    cv.put("sequence", ++changeSequence);
+                    db.update("assignment", cv, "hook = ?", new String[]{id});
+
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
@@ -333,97 +432,97 @@ class XProvider {
     }
 
     private static Cursor getApps(Context context, String[] selection, boolean marshall) throws Throwable {
-        Map<String, XApp> apps = new HashMap<>();
+        // Optional filter, changed since token, offset and limit
+        if (selection != null && selection.length != 4)
+            throw new IllegalArgumentException("selection invalid");
+
+        String filter = (selection == null || TextUtils.isEmpty(selection[0])
+                ? null : selection[0].toLowerCase());
+        long since = (selection == null || TextUtils.isEmpty(selection[1]) ? 0 : Long.parseLong(selection[1]));
+        int offset = (selection == null || TextUtils.isEmpty(selection[2]) ? 0 : Integer.parseInt(selection[2]));
+        int limit = (selection == null || TextUtils.isEmpty(selection[3]) ? 0 : Integer.parseInt(selection[3]));
 
         int cuid = Binder.getCallingUid();
         int userid = Util.getUserId(cuid);
 
-        // Access package manager as system user
-        long ident = Binder.clearCallingIdentity();
-        try {
-            // Get installed apps for current user
-            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
-            for (ApplicationInfo ai : pm.getInstalledApplications(0))
-                if (!ai.packageName.startsWith(BuildConfig.APPLICATION_ID))
-                    try {
-                        int esetting = pm.getApplicationEnabledSetting(ai.packageName);
-                        boolean enabled = (ai.enabled &&
-                                (esetting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT ||
-                                        esetting == PackageManager.COMPONENT_ENABLED_STATE_ENABLED));
-                        boolean persistent = ((ai.flags & ApplicationInfo.FLAG_PERSISTENT) != 0 ||
-                                "android".equals(ai.packageName));
-                        boolean system = ((ai.flags &
-                                (ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) != 0);
-
-                        XApp app = new XApp();
-                        app.uid = ai.uid;
-                        app.packageName = ai.packageName;
-                        app.icon = ai.icon;
-                        app.label = (String) pm.getApplicationLabel(ai);
-                        app.enabled = enabled;
-                        app.persistent = persistent;
-                        app.system = system;
-                        app.forceStop = (!persistent && !system);
-                        app.assignments = new ArrayList<>();
-                        apps.put(app.packageName, app);
-                    } catch (Throwable ex) {
-                        Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
-                    }
-        } finally {
-            Binder.restoreCallingIdentity(ident);
+        // Select apps from the snapshot sorted by package name for stable pages
+        Map<String, XApp> apps = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        long sequence;
+        int count = 0;
+        AppSnapshot snapshot = getAppSnapshot(context, userid);
+        synchronized (appCache) {
+            boolean full = (since <= 0 || since < snapshot.reset);
+            sequence = appSequence;
+
+            List<String> packages = new ArrayList<>(snapshot.apps.keySet());
+            Collections.sort(packages);
+            for (String pkg : packages) {
+                XApp app = snapshot.apps.get(pkg);
+                if (filter != null &&
+                        !app.packageName.toLowerCase().contains(filter) &&
+                        !(app.label != null && app.label.toLowerCase().contains(filter)))
+                    continue;
+                if (!full && !(snapshot.changed.containsKey(pkg) && snapshot.changed.get(pkg) > since))
+                    continue;
+                if (count++ < offset)
+                    continue;
+                if (limit > 0 && apps.size() >= limit)
+                    continue;
+
+                XApp copy = new XApp();
+                copy.uid = app.uid;
+                copy.packageName = app.packageName;
+                copy.icon = app.icon;
+                copy.label = app.label;
+                copy.enabled = app.enabled;
+                copy.persistent = app.persistent;
+                copy.system = app.system;
+                copy.forceStop = app.forceStop;
+                copy.assignments = new ArrayList<>();
+                apps.put(copy.packageName, copy);
+            }
+
+            if (!full && offset == 0)
+                for (String pkg : snapshot.changed.keySet())
+                    if (snapshot.changed.get(pkg) > since && !snapshot.apps.containsKey(pkg))
+                        removed.add(pkg);
         }
 
-        Log.i(TAG, "Installed apps=" + apps.size() + " cuid=" + cuid);
+        Log.i(TAG, "Apps=" + apps.size() + "/" + count + " removed=" + removed.size() +
+                " since=" + since + " sequence=" + sequence + " cuid=" + cuid);
 
         // Get settings
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query(
-                            "setting",
-                            new String[]{"category", "value"},
-                            "user = ? AND name = 'forcestop'",
-                            new String[]{Integer.toString(userid)},
-                            null, null, null);
-                    while (cursor.moveToNext()) {
-                        String pkg = cursor.getString(0);
-                        if (apps.containsKey(pkg)) {
-                            XApp app = apps.get(pkg);
-                            app.forceStop = Boolean.parseBoolean(cursor.getString(1));
-                        } else
-                            Log.i(TAG, "Package " + pkg + " not found (force stop)");
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+        Map<String, String> forceStop = getSettingValues(userid, "forcestop");
+        for (String pkg : forceStop.keySet())
+            if (apps.containsKey(pkg)) {
+                XApp app = apps.get(pkg);
+                app.forceStop = Boolean.parseBoolean(forceStop.get(pkg));
             }
-        } finally {
-            dbLock.readLock().unlock();
-        }
 
         // Get assigned hooks
         List<String> collection = getCollection(context, userid);
         dbLock.readLock().lock();
         try {
-            db.beginTransaction();
-            try {
+            // Scan the assignments of the user only when most apps were selected
+            boolean scan = (apps.size() > count / 2);
+            List<String[]> queries = new ArrayList<>();
+            if (scan) {
+                int start = Util.getUserUid(userid, 0);
+                int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+                queries.add(new String[]{Integer.toString(start), Integer.toString(end)});
+            } else
+                for (XApp app : apps.values())
+                    queries.add(new String[]{app.packageName, Integer.toString(app.uid)});
+
+            for (String[] args : queries) {
                 Cursor cursor = null;
                 try {
-                    int start = Util.getUserUid(userid, 0);
-                    int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
                     cursor = db.query(
                             "assignment",
                             new String[]{"package", "uid", "hook", "installed", "used", "restricted", "exception"},
-                            "uid >= ? AND uid <= ?",
-                            new String[]{Integer.toString(start), Integer.toString(end)},
+                            scan ? "uid >= ? AND uid <= ?" : "package = ? AND uid = ?",
+                            args,
                             null, null, null);
                     int colPkg = cursor.getColumnIndex("package");
                     int colUid = cursor.getColumnIndex("uid");
@@ -437,8 +536,8 @@ class XProvider {
                         int uid = cursor.getInt(colUid);
                         String hookid = cursor.getString(colHook);
                         if (apps.containsKey(pkg)) {
-                            XApp app = apps.get(pkg);
-                            if (app.uid != uid)
+                            XApp assigned = apps.get(pkg);
+                            if (assigned.uid != uid)
                                 continue;
                             synchronized (lock) {
                                 if (hooks.containsKey(hookid)) {
@@ -449,39 +548,128 @@ class XProvider {
                                         assignment.used = cursor.getLong(colUsed);
                                         assignment.restricted = (cursor.getInt(colRestricted) == 1);
                                         assignment.exception = cursor.getString(colException);
-                                        app.assignments.add(assignment);
+                                        assigned.assignments.add(assignment);
                                     }
                                 } else if (BuildConfig.DEBUG)
                                     Log.w(TAG, "Hook " + hookid + " not found (assignment)");
                             }
-                        } else
-                            Log.i(TAG, "Package " + pkg + " not found");
+                        }
                     }
                 } finally {
                     if (cursor != null)
                         cursor.close();
                 }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
             }
         } finally {
             dbLock.readLock().unlock();
         }
 
-        MatrixCursor result = new MatrixCursor(new String[]{marshall ? "blob" : "json"});
+        // Removed apps have no data
+        MatrixCursor result = new MatrixCursor(new String[]{marshall ? "blob" : "json", "package"});
         for (XApp app : apps.values())
             if (marshall) {
                 Parcel parcel = Parcel.obtain();
                 app.writeToParcel(parcel, 0);
-                result.newRow().add(parcel.marshall());
+                result.newRow().add(parcel.marshall()).add(app.packageName);
                 parcel.recycle();
             } else
-                result.newRow().add(app.toJSON());
+                result.newRow().add(app.toJSON()).add(app.packageName);
+        for (String pkg : removed)
+            result.newRow().add(null).add(pkg);
+
+        Bundle extras = new Bundle();
+        extras.putLong("sequence", sequence);
+        extras.putInt("count", count);
+        result.setExtras(extras);
         return result;
     }
 
+    // Build without holding appCache, so usage reports don't wait for the package manager
+    private static AppSnapshot getAppSnapshot(Context context, int userid) throws Throwable {
+        while (true) {
+            long updates;
+            synchronized (appCache) {
+                AppSnapshot snapshot = appCache.get(userid);
+                if (snapshot != null)
+                    return snapshot;
+                updates = appUpdates;
+            }
+
+            AppSnapshot snapshot = new AppSnapshot();
+
+            // Access package manager as system user
+            long ident = Binder.clearCallingIdentity();
+            try {
+                // Get installed apps for user
+                PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+                for (ApplicationInfo ai : pm.getInstalledApplications(0))
+                    if (!ai.packageName.startsWith(BuildConfig.APPLICATION_ID))
+                        try {
+                            snapshot.apps.put(ai.packageName, getApp(pm, ai));
+                        } catch (Throwable ex) {
+                            Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
+                        }
+            } finally {
+                Binder.restoreCallingIdentity(ident);
+            }
+
+            // Publish unless another call did or packages changed while building
+            synchronized (appCache) {
+                AppSnapshot current = appCache.get(userid);
+                if (current != null)
+                    return current;
+                if (updates == appUpdates) {
+                    snapshot.reset = appSequence;
+                    appCache.put(userid, snapshot);
+                    Log.i(TAG, "Installed apps=" + snapshot.apps.size() + " user=" + userid);
+                    return snapshot;
+                }
+            }
+            Log.i(TAG, "Packages changed while building apps user=" + userid);
+        }
+    }
+
+    private static XApp getApp(PackageManager pm, ApplicationInfo ai) {
+        int esetting = pm.getApplicationEnabledSetting(ai.packageName);
+        boolean enabled = (ai.enabled &&
+                (esetting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT ||
+                        esetting == PackageManager.COMPONENT_ENABLED_STATE_ENABLED));
+        boolean persistent = ((ai.flags & ApplicationInfo.FLAG_PERSISTENT) != 0 ||
+                "android".equals(ai.packageName));
+        boolean system = ((ai.flags &
+                (ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) != 0);
+
+        XApp app = new XApp();
+        app.uid = ai.uid;
+        app.packageName = ai.packageName;
+        app.icon = ai.icon;
+        app.label = (String) pm.getApplicationLabel(ai);
+        app.enabled = enabled;
+        app.persistent = persistent;
+        app.system = system;
+        app.forceStop = (!persistent && !system);
+        return app;
+    }
+
+    // Only marks the app changed, called with the database write lock held
+    private static void touchApp(int userid, String packageName) {
+        synchronized (appCache) {
+            AppSnapshot snapshot = appCache.get(userid);
+            if (snapshot != null)
+                snapshot.changed.put(packageName, ++appSequence);
+        }
+    }
+
+    private static void touchApps() {
+        synchronized (appCache) {
+            appSequence++;
+            for (AppSnapshot snapshot : appCache.values()) {
+                snapshot.reset = appSequence;
+                snapshot.changed.clear();
+            }
+        }
+    }
+
     @SuppressLint("MissingPermission")
     private static Bundle assignHooks(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
@@ -492,64 +680,151 @@ class XProvider {
         boolean delete = extras.getBoolean("delete");
         boolean kill = extras.getBoolean("kill");
 
+        assignHooks(new String[]{packageName}, new int[]{uid}, hookids, delete);
+
+        if (kill)
+            forceStop(context, packageName, Util.getUserId(uid));
+
+        return new Bundle();
+    }
+
+    @SuppressLint("MissingPermission")
+    private static Bundle assignHooksBulk(Context context, Bundle extras) throws Throwable {
+        enforcePermission(context);
+
+        // Same hooks for each package/uid pair
+        String[] packages = extras.getStringArray("packages");
+        int[] uids = extras.getIntArray("uids");
+        List<String> hookids = extras.getStringArrayList("hooks");
+        boolean delete = extras.getBoolean("delete");
+        boolean kill = extras.getBoolean("kill");
+
+        if (packages == null || uids == null || hookids == null || packages.length != uids.length)
+            throw new IllegalArgumentException("packages/uids/hooks invalid");
+
+        long start = SystemClock.elapsedRealtime();
+        int[] counts = assignHooks(packages, uids, hookids, delete);
+        Log.i(TAG, "Assigned hooks=" + hookids.size() + " packages=" + packages.length +
+                " delete=" + delete + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        if (kill)
+            for (int i = 0; i < packages.length; i++)
+                forceStop(context, packages[i], Util.getUserId(uids[i]));
+
+        Bundle result = new Bundle();
+        result.putStringArray("packages", packages);
+        result.putIntArray("counts", counts);
+        return result;
+    }
+
+    // Returns the number of changed assignments per package
+    private static int[] assignHooks(String[] packages, int[] uids, List<String> hookids, boolean delete) throws Throwable {
+        // Get groups of the hooks once
+        List<String> groups = new ArrayList<>();
+        synchronized (lock) {
+            for (String hookid : hookids)
+                if (hooks.containsKey(hookid)) {
+                    String group = hooks.get(hookid).getGroup();
+                    if (!groups.contains(group))
+                        groups.add(group);
+                }
+        }
+
+        int[] counts = new int[packages.length];
+
         dbLock.writeLock().lock();
         try {
+            SQLiteStatement stmtAssign = null;
+            SQLiteStatement stmtRemoved = null;
+            SQLiteStatement stmtRemove = null;
+            SQLiteStatement stmtGroup = null;
             db.beginTransaction();
             try {
-                List<String> groups = new ArrayList<>();
-                for (String hookid : hookids) {
-                    XHook hook = null;
-                    synchronized (lock) {
-                        if (hooks.containsKey(hookid))
-                            hook = hooks.get(hookid);
-                    }
-                    if (hook != null && !groups.contains(hook.getGroup()))
-                        groups.add(hook.getGroup());
-
-                    if (delete) {
-                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " deleted");
-                        long rows = db.delete("assignment",
-                                "hook = ? AND package = ? AND uid = ?",
-                                new String[]{hookid, packageName, Integer.toString(uid)});
-                        if (rows < 0)
-                            throw new Throwable("Error deleting assignment");
-                    } else {
-                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " added");
-                        ContentValues cv = new ContentValues();
-                        cv.put("package", packageName);
-                        cv.put("uid", uid);
-                        cv.put("hook", hookid);
-                        cv.put("installed", -1);
-                        cv.put("used", -1);
-                        cv.put("restricted", 0);
-                        cv.putNull("exception");
-                        long rows = db.insertWithOnConflict("assignment", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                        if (rows < 0)
-                            throw new Throwable("Error inserting assignment");
-                    }
+                if (delete) {
+                    stmtRemoved = db.compileStatement(
+                            "INSERT OR REPLACE INTO removal (package, uid, hook, sequence)" +
+                                    " SELECT package, uid, hook, ? FROM assignment" +
+                                    " WHERE package = ? AND uid = ? AND hook = ?");
+                    stmtRemove = db.compileStatement(
+                            "DELETE FROM assignment WHERE package = ? AND uid = ? AND hook = ?");
+                } else {
+                    stmtAssign = db.compileStatement(
+                            "INSERT OR REPLACE INTO assignment" +
+                                    " (package, uid, hook, installed, used, restricted, exception, sequence)" +
+                                    " VALUES (?, ?, ?, -1, -1, 0, NULL, ?)");
+                    stmtRemoved = db.compileStatement(
+                            "DELETE FROM removal WHERE package = ? AND uid = ? AND hook = ?");
+                    stmtGroup = db.compileStatement(
+                            "DELETE FROM `group` WHERE package = ? AND uid = ? AND name = ?");
                 }
 
-                if (!delete)
-                    for (String group : groups) {
-                        long rows = db.delete("`group`",
-                                "package = ? AND uid = ? AND name = ?",
-                                new String[]{packageName, Integer.toString(uid), group});
-                        if (rows < 0)
-                            throw new Throwable("Error deleting group");
-                    }
+                for (int i = 0; i < packages.length; i++) {
+                    String packageName = packages[i];
+                    int uid = uids[i];
+                    for (String hookid : hookids)
+                        if (delete) {
+                            stmtRemoved.bindLong(1, ++changeSequence);
+                            stmtRemoved.bindString(2, packageName);
+                            stmtRemoved.bindLong(3, uid);
+                            stmtRemoved.bindString(4, hookid);
+                            stmtRemoved.execute();
+
+                            stmtRemove.bindString(1, packageName);
+                            stmtRemove.bindLong(2, uid);
+                            stmtRemove.bindString(3, hookid);
+                            counts[i] += stmtRemove.executeUpdateDelete();
+                        } else {
+                            stmtAssign.bindString(1, packageName);
+                            stmtAssign.bindLong(2, uid);
+                            stmtAssign.bindString(3, hookid);
+                            stmtAssign.bindLong(4, ++changeSequence);
+                            if (stmtAssign.executeInsert() < 0)
+                                throw new Throwable("Error inserting assignment");
+                            counts[i]++;
+
+                            stmtRemoved.bindString(1, packageName);
+                            stmtRemoved.bindLong(2, uid);
+                            stmtRemoved.bindString(3, hookid);
+                            stmtRemoved.executeUpdateDelete();
+                        }
+
+                    if (!delete)
+                        for (String group : groups) {
+                            stmtGroup.bindString(1, packageName);
+                            stmtGroup.bindLong(2, uid);
+                            stmtGroup.bindString(3, group);
+                            stmtGroup.executeUpdateDelete();
+                        }
+
+                    if (BuildConfig.DEBUG)
+                        Log.i(TAG, packageName + ":" + uid + " hooks=" + hookids.size() +
+                                (delete ? " deleted=" : " added=") + counts[i]);
+                }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                if (stmtAssign != null)
+                    stmtAssign.close();
+                if (stmtRemoved != null)
+                    stmtRemoved.close();
+                if (stmtRemove != null)
+                    stmtRemove.close();
+                if (stmtGroup != null)
+                    stmtGroup.close();
+            }
+
+            synchronized (lock) {
+                for (int i = 0; i < packages.length; i++)
+                    assignedCache.remove(packages[i] + ":" + uids[i]);
             }
+            for (int i = 0; i < packages.length; i++)
+                touchApp(Util.getUserId(uids[i]), packages[i]);
         } finally {
             dbLock.writeLock().unlock();
         }
 
-        if (kill)
-            forceStop(context, packageName, Util.getUserId(uid));
-
-        return new Bundle();
+        return counts;
     }
 
     @SuppressLint("WrongConstant")
@@ -559,49 +834,156 @@ class XProvider {
 
         String packageName = selection[0];
         int uid = Integer.parseInt(selection[1]);
-        MatrixCursor result = new MatrixCursor(new String[]{marshall ? "blob" : "json", "used"});
+        MatrixCursor result = new MatrixCursor(marshall
+                ? new String[]{"blob", "used", "bytecode"}
+                : new String[]{"json", "used"});
 
-        List<String> collection = getCollection(context, Util.getUserId(uid));
+        AssignedHooks assigned = getAssigned(context, packageName, uid);
 
+        synchronized (lock) {
+            for (XAssignment assignment : assigned.assignments)
+                if (marshall) {
+                    Parcel parcel = Parcel.obtain();
+                    assignment.hook.writeToParcel(parcel, XHook.FLAG_WITH_LUA);
+                    result.newRow()
+                            .add(parcel.marshall())
+                            .add(Long.toString(assignment.used))
+                            .add(bytecode.get(assignment.hook.getId()));
+                    parcel.recycle();
+                } else
+                    result.newRow().add(assignment.hook.toJSON()).add(Long.toString(assignment.used));
+        }
+
+        return result;
+    }
+
+    private static AssignedHooks getAssigned(Context context, String packageName, int uid) throws Throwable {
+        String key = packageName + ":" + uid;
+        synchronized (lock) {
+            if (assignedCache.containsKey(key))
+                return assignedCache.get(key);
+        }
+
+        // Writers invalidate under the write lock, so the result cannot be stale
         dbLock.readLock().lock();
         try {
-            db.beginTransaction();
+            List<String> collection = getCollection(context, Util.getUserId(uid));
+
+            Map<String, Long> used = new LinkedHashMap<>();
+            Cursor cursor = null;
             try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query(
-                            "assignment",
-                            new String[]{"hook", "used"},
-                            "package = ? AND uid = ?",
-                            new String[]{packageName, Integer.toString(uid)},
-                            null, null, "hook");
-                    int colHook = cursor.getColumnIndex("hook");
-                    int colUsed = cursor.getColumnIndex("used");
-                    while (cursor.moveToNext()) {
-                        String hookid = cursor.getString(colHook);
-                        synchronized (lock) {
-                            if (hooks.containsKey(hookid)) {
-                                XHook hook = hooks.get(hookid);
-                                if (hook.isAvailable(packageName, collection))
-                                    if (marshall) {
-                                        Parcel parcel = Parcel.obtain();
-                                        hook.writeToParcel(parcel, XHook.FLAG_WITH_LUA);
-                                        result.newRow().add(parcel.marshall()).add(cursor.getString(colUsed));
-                                        parcel.recycle();
-                                    } else
-                                        result.newRow().add(hook.toJSON()).add(cursor.getString(colUsed));
-                            } else if (BuildConfig.DEBUG)
-                                Log.w(TAG, "Hook " + hookid + " not found");
+                cursor = db.query(
+                        "assignment",
+                        new String[]{"hook", "used"},
+                        "package = ? AND uid = ?",
+                        new String[]{packageName, Integer.toString(uid)},
+                        null, null, "hook");
+                int colHook = cursor.getColumnIndex("hook");
+                int colUsed = cursor.getColumnIndex("used");
+                while (cursor.moveToNext())
+                    used.put(cursor.getString(colHook), cursor.getLong(colUsed));
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            synchronized (lock) {
+                List<XAssignment> assignments = new ArrayList<>();
+                for (String hookid : used.keySet())
+                    if (hooks.containsKey(hookid)) {
+                        XHook hook = hooks.get(hookid);
+                        if (hook.isAvailable(packageName, collection)) {
+                            XAssignment assignment = new XAssignment(hook);
+                            assignment.used = used.get(hookid);
+                            assignments.add(assignment);
                         }
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
+                    } else if (BuildConfig.DEBUG)
+                        Log.w(TAG, "Hook " + hookid + " not found");
+
+                AssignedHooks result = new AssignedHooks(assignments);
+                assignedCache.put(key, result);
+                return result;
+            }
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    @SuppressLint("WrongConstant")
+    private static Cursor getBootstrap(Context context, String[] selection) throws Throwable {
+        if (selection == null || selection.length != 2)
+            throw new IllegalArgumentException("selection invalid");
+
+        String packageName = selection[0];
+        int uid = Integer.parseInt(selection[1]);
+        int userid = Util.getUserId(uid);
+
+        // Get package version
+        int versionCode = -1;
+        long ident = Binder.clearCallingIdentity();
+        try {
+            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+            versionCode = pm.getPackageInfo(packageName, 0).versionCode;
+        } catch (Throwable ex) {
+            Log.w(TAG, "Version unknown pkg=" + packageName + " ex=" + ex);
+        } finally {
+            Binder.restoreCallingIdentity(ident);
+        }
+
+        AssignedHooks assigned = getAssigned(context, packageName, uid);
+        Map<String, String> hints = getHints(packageName, uid, versionCode);
+
+        // Package settings override global settings
+        Map<String, String> settings = getSettings(userid, "global");
+        settings.putAll(getSettings(userid, packageName));
+
+        // Version, marshalled hooks with bytecode, availability and hint, settings
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(versionCode);
+            synchronized (lock) {
+                parcel.writeByteArray(assigned.getPayload());
+                parcel.writeInt(assigned.assignments.size());
+                for (XAssignment assignment : assigned.assignments) {
+                    XHook hook = assignment.hook;
+                    parcel.writeByte(versionCode < 0 ? (byte) -1 : (hook.isAvailable(versionCode) ? (byte) 1 : (byte) 0));
+                    parcel.writeString(hints.get(hook.getId()));
                 }
+            }
+            parcel.writeInt(settings.size());
+            for (String name : settings.keySet()) {
+                parcel.writeString(name);
+                parcel.writeString(settings.get(name));
+            }
 
-                db.setTransactionSuccessful();
+            MatrixCursor result = new MatrixCursor(new String[]{"blob"});
+            result.newRow().add(parcel.marshall());
+            return result;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Map<String, String> getHints(String packageName, int uid, int versionCode) {
+        Map<String, String> result = new HashMap<>();
+        if (versionCode < 0)
+            return result;
+
+        dbLock.readLock().lock();
+        try {
+            Cursor cursor = null;
+            try {
+                cursor = db.query(
+                        "hint",
+                        new String[]{"hook", "member"},
+                        "package = ? AND uid = ? AND version = ?",
+                        new String[]{packageName, Integer.toString(uid), Integer.toString(versionCode)},
+                        null, null, null);
+                while (cursor.moveToNext())
+                    result.put(cursor.getString(0), cursor.getString(1));
             } finally {
-                db.endTransaction();
+                if (cursor != null)
+                    cursor.close();
             }
         } finally {
             dbLock.readLock().unlock();
@@ -619,239 +1001,652 @@ class XProvider {
         int userid = Util.getUserId(uid);
         MatrixCursor result = new MatrixCursor(new String[]{"name", "value"});
 
+        Map<String, String> settings = getSettings(userid, packageName);
+        for (String name : settings.keySet())
+            result.addRow(new String[]{name, settings.get(name)});
+
+        return result;
+    }
+
+    private static Map<String, String> getSettings(int userid, String category) {
+        loadSettings(userid);
+        synchronized (settingCache) {
+            Map<String, Map<String, String>> categories = settingCache.get(userid);
+            if (categories == null || !categories.containsKey(category))
+                return new HashMap<>();
+            return new HashMap<>(categories.get(category));
+        }
+    }
+
+    // Category > value of one setting name
+    private static Map<String, String> getSettingValues(int userid, String name) {
+        Map<String, String> result = new HashMap<>();
+        loadSettings(userid);
+        synchronized (settingCache) {
+            Map<String, Map<String, String>> categories = settingCache.get(userid);
+            if (categories != null)
+                for (String category : categories.keySet())
+                    if (categories.get(category).containsKey(name))
+                        result.put(category, categories.get(category).get(name));
+        }
+        return result;
+    }
+
+    private static void loadSettings(int userid) {
+        synchronized (settingCache) {
+            if (settingCache.containsKey(userid)) {
+                settingHits++;
+                return;
+            }
+            settingMisses++;
+        }
+
+        Map<String, Map<String, String>> categories = new HashMap<>();
         dbLock.readLock().lock();
         try {
-            db.beginTransaction();
+            Cursor cursor = null;
             try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query(
-                            "setting",
-                            new String[]{"name", "value"},
-                            "user = ? AND category = ?",
-                            new String[]{Integer.toString(userid), packageName},
-                            null, null, null);
-                    while (cursor.moveToNext())
-                        result.addRow(new String[]{cursor.getString(0), cursor.getString(1)});
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
+                cursor = db.query(
+                        "setting",
+                        new String[]{"category", "name", "value"},
+                        "user = ?",
+                        new String[]{Integer.toString(userid)},
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    String category = cursor.getString(0);
+                    if (!categories.containsKey(category))
+                        categories.put(category, new HashMap<String, String>());
+                    categories.get(category).put(cursor.getString(1), cursor.isNull(2) ? null : cursor.getString(2));
                 }
-
-                db.setTransactionSuccessful();
             } finally {
-                db.endTransaction();
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            // Writers update the cache under the write lock, so this cannot be stale
+            synchronized (settingCache) {
+                if (!settingCache.containsKey(userid))
+                    settingCache.put(userid, categories);
             }
         } finally {
             dbLock.readLock().unlock();
         }
 
+        Log.i(TAG, "Loaded settings user=" + userid + " categories=" + categories.size());
+    }
+
+    private static void putSettingCache(int userid, String category, String name, String value) {
+        synchronized (settingCache) {
+            Map<String, Map<String, String>> categories = settingCache.get(userid);
+            if (categories == null)
+                return;
+            if (!categories.containsKey(category))
+                categories.put(category, new HashMap<String, String>());
+            if (value == null)
+                categories.get(category).remove(name);
+            else
+                categories.get(category).put(name, value);
+        }
+    }
+
+    private static Bundle getStats(Context context, Bundle extras) throws Throwable {
+        enforcePermission(context);
+
+        Bundle result = new Bundle();
+        synchronized (settingCache) {
+            result.putLong("setting_hits", settingHits);
+            result.putLong("setting_misses", settingMisses);
+        }
+        synchronized (permissionCache) {
+            result.putLong("permission_hits", permissionHits);
+            result.putLong("permission_checks", permissionChecks);
+        }
         return result;
     }
 
-    @SuppressLint("MissingPermission")
     private static Bundle report(Context context, Bundle extras) throws Throwable {
+        List<Bundle> events = new ArrayList<>();
+        events.add(extras);
+        reportEvents(context, events);
+        return new Bundle();
+    }
+
+    private static Bundle reportBatch(Context context, Bundle extras) throws Throwable {
+        List<Bundle> events = extras.getParcelableArrayList("events");
+        if (events == null)
+            throw new IllegalArgumentException("events missing");
+
+        // An empty batch checks whether the method is supported
+        if (events.size() > 0)
+            reportEvents(context, events);
+
+        Bundle result = new Bundle();
+        result.putInt("count", events.size());
+        return result;
+    }
+
+    @SuppressLint("MissingPermission")
+    private static void reportEvents(Context context, List<Bundle> events) throws Throwable {
+        int cuid = Binder.getCallingUid();
+        XHook[] hook = new XHook[events.size()];
+        boolean[] notify = new boolean[events.size()];
+        long[] used = new long[events.size()];
+        Map<String, Boolean> notifies = new HashMap<>();
+
+        for (int i = 0; i < events.size(); i++) {
+            Bundle extras = events.get(i);
+            String hookid = extras.getString("hook");
+            String packageName = extras.getString("packageName");
+            int uid = extras.getInt("uid");
+            int userid = Util.getUserId(uid);
+            String event = extras.getString("event");
+            Bundle data = extras.getBundle("data");
+
+            if (uid != cuid)
+                throw new SecurityException();
+
+            StringBuilder sb = new StringBuilder();
+            for (String key : data.keySet()) {
+                sb.append(' ');
+                sb.append(key);
+                sb.append('=');
+                Object value = data.get(key);
+                sb.append(value == null ? "null" : value.toString());
+            }
+            Log.i(TAG, "Hook " + hookid + " pkg=" + packageName + ":" + uid + " event=" + event + sb.toString());
+
+            // Get hook
+            synchronized (lock) {
+                if (hooks.containsKey(hookid))
+                    hook[i] = hooks.get(hookid);
+            }
+
+            // Get notify setting
+            String key = userid + ":" + packageName;
+            if (!notifies.containsKey(key)) {
+                Bundle args = new Bundle();
+                args.putInt("user", userid);
+                args.putString("category", packageName);
+                args.putString("name", "notify");
+                notifies.put(key, Boolean.parseBoolean(getSetting(context, args).getString("value")));
+            }
+            notify[i] = notifies.get(key);
+        }
+
+        // Store all events in one transaction
+        dbLock.writeLock().lock();
+        try {
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < events.size(); i++)
+                    used[i] = storeEvent(events.get(i), hook[i], notify[i]);
+                rollupUsage(events);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+
+        for (int i = 0; i < events.size(); i++)
+            queueNotify(context, events.get(i), hook[i], notify[i], used[i]);
+    }
+
+    private static long storeEvent(Bundle extras, XHook hook, boolean notify) throws Throwable {
         String hookid = extras.getString("hook");
         String packageName = extras.getString("packageName");
         int uid = extras.getInt("uid");
-        int userid = Util.getUserId(uid);
         String event = extras.getString("event");
         long time = extras.getLong("time");
         Bundle data = extras.getBundle("data");
         int restricted = data.getInt("restricted", 0);
 
-        if (uid != Binder.getCallingUid())
-            throw new SecurityException();
-
-        StringBuilder sb = new StringBuilder();
-        for (String key : data.keySet()) {
-            sb.append(' ');
-            sb.append(key);
-            sb.append('=');
-            Object value = data.get(key);
-            sb.append(value == null ? "null" : value.toString());
+        // Store resolution hint
+        if ("hint".equals(event)) {
+            ContentValues cv = new ContentValues();
+            cv.put("package", packageName);
+            cv.put("uid", uid);
+            cv.put("hook", hookid);
+            cv.put("version", data.getInt("version"));
+            cv.put("member", data.getString("member"));
+            long rows = db.insertWithOnConflict("hint", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+            if (rows < 0)
+                throw new Throwable("Error inserting hint");
+            return -1;
         }
-        Log.i(TAG, "Hook " + hookid + " pkg=" + packageName + ":" + uid + " event=" + event + sb.toString());
 
-        // Get hook
-        XHook hook = null;
-        synchronized (lock) {
-            if (hooks.containsKey(hookid))
-                hook = hooks.get(hookid);
+        // Store event
+        ContentValues cv = new ContentValues();
+        if ("install".equals(event))
+            cv.put("installed", time);
+        else if ("use".equals(event)) {
+            cv.put("used", time);
+            cv.put("restricted", restricted);
+        }
+        if (data.containsKey("exception"))
+            cv.put("exception", data.getString("exception"));
+        if (data.containsKey("old"))
+            cv.put("old", data.getString("old"));
+        if (data.containsKey("new"))
+            cv.put("new", data.getString("new"));
+        cv.put("sequence", ++changeSequence);
+
+        long rows = db.update("assignment", cv,
+                "package = ? AND uid = ? AND hook = ?",
+                new String[]{packageName, Integer.toString(uid), hookid});
+        if (rows != 1)
+            Log.w(TAG, "Error updating assignment");
+
+        // Append to usage log
+        if ("use".equals(event)) {
+            ContentValues ucv = new ContentValues();
+            ucv.put("package", packageName);
+            ucv.put("uid", uid);
+            ucv.put("hook", hookid);
+            ucv.put("time", time);
+            ucv.put("restricted", restricted);
+            ucv.put("old", data.getString("old"));
+            ucv.put("new", data.getString("new"));
+            if (db.insert("usage", null, ucv) < 0)
+                throw new Throwable("Error inserting usage");
+
+            if (++usageAppends >= cUsageCompact) {
+                usageAppends = 0;
+                compactUsage(time);
+            }
         }
 
-        // Get notify setting
-        Bundle args = new Bundle();
-        args.putInt("user", userid);
-        args.putString("category", packageName);
-        args.putString("name", "notify");
-        boolean notify = Boolean.parseBoolean(getSetting(context, args).getString("value"));
+        touchApp(Util.getUserId(uid), packageName);
+
+        if ("use".equals(event))
+            synchronized (lock) {
+                AssignedHooks assigned = assignedCache.get(packageName + ":" + uid);
+                if (assigned != null)
+                    for (XAssignment assignment : assigned.assignments)
+                        if (assignment.hook.getId().equals(hookid))
+                            assignment.used = time;
+            }
 
+        // Update group
         long used = -1;
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
+        if (hook != null && "use".equals(event) && restricted == 1 && notify) {
+            Cursor cursor = null;
             try {
-                // Store event
-                ContentValues cv = new ContentValues();
-                if ("install".equals(event))
-                    cv.put("installed", time);
-                else if ("use".equals(event)) {
-                    cv.put("used", time);
-                    cv.put("restricted", restricted);
+                cursor = db.query("`group`", new String[]{"used"},
+                        "package = ? AND uid = ? AND name = ?",
+                        new String[]{packageName, Integer.toString(uid), hook.getGroup()},
+                        null, null, null);
+                if (cursor.moveToNext())
+                    used = cursor.getLong(0);
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            cv.clear();
+            cv.put("package", packageName);
+            cv.put("uid", uid);
+            cv.put("name", hook.getGroup());
+            cv.put("used", time);
+            rows = db.insertWithOnConflict("`group`", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+            if (rows < 0)
+                throw new Throwable("Error inserting group");
+        }
+
+        return used;
+    }
+
+    // Call in a transaction, counts each use once per bucket size
+    private static void rollupUsage(List<Bundle> events) {
+        Map<String, long[]> buckets = new LinkedHashMap<>();
+        Map<String, Bundle> keys = new HashMap<>();
+        for (Bundle extras : events)
+            if ("use".equals(extras.getString("event")))
+                for (long size : cRollupSize) {
+                    long bucket = extras.getLong("time") / size * size;
+                    String key = extras.getString("packageName") + ":" + extras.getInt("uid") + "/" +
+                            extras.getString("hook") + "@" + size + ":" + bucket;
+                    long[] counts = buckets.get(key);
+                    if (counts == null) {
+                        counts = new long[]{size, bucket, 0, 0};
+                        buckets.put(key, counts);
+                        keys.put(key, extras);
+                    }
+                    counts[2]++;
+                    counts[3] += extras.getBundle("data").getInt("restricted", 0);
                 }
-                if (data.containsKey("exception"))
-                    cv.put("exception", data.getString("exception"));
-                if (data.containsKey("old"))
-                    cv.put("old", data.getString("old"));
-                if (data.containsKey("new"))
-                    cv.put("new", data.getString("new"));
-
-                long rows = db.update("assignment", cv,
-                        "package = ? AND uid = ? AND hook = ?",
-                        new String[]{packageName, Integer.toString(uid), hookid});
-                if (rows != 1)
-                    Log.w(TAG, "Error updating assignment");
-
-                // Update group
-                if (hook != null && "use".equals(event) && restricted == 1 && notify) {
-                    Cursor cursor = null;
-                    try {
-                        cursor = db.query("`group`", new String[]{"used"},
-                                "package = ? AND uid = ? AND name = ?",
-                                new String[]{packageName, Integer.toString(uid), hook.getGroup()},
-                                null, null, null);
-                        if (cursor.moveToNext())
-                            used = cursor.getLong(0);
-                    } finally {
-                        if (cursor != null)
-                            cursor.close();
+
+        for (String key : buckets.keySet()) {
+            Bundle extras = keys.get(key);
+            long[] counts = buckets.get(key);
+            Object[] where = new Object[]{
+                    extras.getString("packageName"), extras.getInt("uid"), extras.getString("hook"),
+                    counts[0], counts[1]};
+            db.execSQL("INSERT OR IGNORE INTO usage_rollup (package, uid, hook, size, bucket, count, restricted)" +
+                    " VALUES (?, ?, ?, ?, ?, 0, 0)", where);
+            db.execSQL("UPDATE usage_rollup SET count = count + ?, restricted = restricted + ?" +
+                            " WHERE package = ? AND uid = ? AND hook = ? AND size = ? AND bucket = ?",
+                    new Object[]{counts[2], counts[3], where[0], where[1], where[2], where[3], where[4]});
+        }
+    }
+
+    // Call in a transaction, bounds the usage log and the rollups
+    private static void compactUsage(long now) {
+        db.execSQL("DELETE FROM usage WHERE rowid <= (SELECT MAX(rowid) FROM usage) - ?",
+                new Object[]{cUsageMax});
+        for (int i = 0; i < cRollupSize.length; i++)
+            db.delete("usage_rollup", "size = ? AND bucket < ?",
+                    new String[]{Long.toString(cRollupSize[i]), Long.toString(now - cRollupKeep[i])});
+        Log.i(TAG, "Compacted usage log");
+    }
+
+    private static void queueNotify(final Context context, Bundle extras, XHook hook, boolean notify, long used) {
+        String hookid = extras.getString("hook");
+        String packageName = extras.getString("packageName");
+        int uid = extras.getInt("uid");
+        String event = extras.getString("event");
+        Bundle data = extras.getBundle("data");
+        int restricted = data.getInt("restricted", 0);
+
+        List<Bundle> work = new ArrayList<>();
+
+        // Notify usage
+        if (hook != null && "use".equals(event) && restricted == 1 &&
+                (hook.doNotify() || (notify && used < 0))) {
+            Bundle args = new Bundle();
+            args.putString("tag", "xlua_use_" + hook.getGroup());
+            args.putString("hook", hookid);
+            args.putString("group", hook.getGroup());
+            args.putString("packageName", packageName);
+            args.putInt("uid", uid);
+            work.add(args);
+        }
+
+        // Notify exception
+        if (data.containsKey("exception")) {
+            Bundle args = new Bundle();
+            args.putString("tag", "xlua_exception");
+            args.putString("hook", hookid);
+            args.putString("packageName", packageName);
+            args.putInt("uid", uid);
+            work.add(args);
+        }
+
+        if (work.size() == 0)
+            return;
+
+        synchronized (notifyQueue) {
+            // Repeated notifications replace each other as they would when posted
+            for (Bundle args : work)
+                notifyQueue.put(args.getString("tag") + ":" + uid, args);
+
+            if (notifier == null)
+                notifier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "XLua.Notify");
+                        thread.setDaemon(true);
+                        return thread;
                     }
+                });
+
+            if (notifyFlush == null)
+                notifyFlush = notifier.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushNotify(context);
+                    }
+                }, cNotifyDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void flushNotify(Context context) {
+        List<Bundle> work;
+        synchronized (notifyQueue) {
+            work = new ArrayList<>(notifyQueue.values());
+            notifyQueue.clear();
+            notifyFlush = null;
+        }
+
+        for (Bundle args : work)
+            try {
+                notifyEvent(context, args);
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+            }
+    }
+
+    @SuppressLint("MissingPermission")
+    private static void notifyEvent(Context context, Bundle args) throws Throwable {
+        String tag = args.getString("tag");
+        String hookid = args.getString("hook");
+        String packageName = args.getString("packageName");
+        int uid = args.getInt("uid");
+        int userid = Util.getUserId(uid);
+        boolean usage = args.containsKey("group");
+
+        Context ctx = Util.createContextForUser(context, userid);
+        PackageManager pm = ctx.getPackageManager();
+        Resources resources = pm.getResourcesForApplication(BuildConfig.APPLICATION_ID);
+
+        Notification.Builder builder = new Notification.Builder(ctx);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            builder.setChannelId(cChannelName);
+        if (usage) {
+            builder.setSmallIcon(android.R.drawable.ic_dialog_info);
+            builder.setContentTitle(resources.getString(R.string.msg_usage,
+                    getGroupName(resources, userid, args.getString("group"), hookid)));
+            if (BuildConfig.DEBUG)
+                builder.setSubText(hookid);
+            builder.setPriority(Notification.PRIORITY_DEFAULT);
+        } else {
+            builder.setSmallIcon(android.R.drawable.ic_dialog_alert);
+            builder.setContentTitle(resources.getString(R.string.msg_exception, hookid));
+            builder.setPriority(Notification.PRIORITY_HIGH);
+        }
+        builder.setContentText(getLabel(pm, userid, packageName));
+
+        builder.setCategory(Notification.CATEGORY_STATUS);
+        builder.setVisibility(Notification.VISIBILITY_SECRET);
+
+        // Main
+        Intent main = pm.getLaunchIntentForPackage(BuildConfig.APPLICATION_ID);
+        if (main != null) {
+            int flags = (Build.VERSION.SDK_INT > Build.VERSION_CODES.R ? 0x04000000 : 0);
+            main.putExtra(ActivityMain.EXTRA_SEARCH_PACKAGE, packageName);
+            PendingIntent pi = PendingIntent.getActivity(ctx, uid, main, flags);
+            builder.setContentIntent(pi);
+        }
+
+        builder.setAutoCancel(true);
+
+        Util.notifyAsUser(ctx, tag, uid, builder.build(), userid);
+    }
+
+    private static CharSequence getLabel(PackageManager pm, int userid, String packageName) throws Throwable {
+        String key = userid + ":" + packageName;
+        synchronized (labelCache) {
+            if (labelCache.containsKey(key))
+                return labelCache.get(key);
+        }
+        CharSequence label = pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0));
+        synchronized (labelCache) {
+            labelCache.put(key, label);
+        }
+        return label;
+    }
+
+    private static String getGroupName(Resources resources, int userid, String group, String hookid) {
+        String key = userid + ":" + group;
+        synchronized (groupCache) {
+            if (groupCache.containsKey(key))
+                return groupCache.get(key);
+        }
+        String name = group.toLowerCase().replaceAll("[^a-z]", "_");
+        int resId = resources.getIdentifier("group_" + name, "string", BuildConfig.APPLICATION_ID);
+        if (resId == 0)
+            return hookid;
+        String result = resources.getString(resId);
+        synchronized (groupCache) {
+            groupCache.put(key, result);
+        }
+        return result;
+    }
+
+    private static Cursor getLog(Context context, String[] selection) throws Throwable {
+        enforcePermission(context);
+
+        // Optional: before id and limit, a page by default
+        if (selection != null && selection.length != 2)
+            throw new IllegalArgumentException("selection invalid");
+
+        String before = (selection == null || TextUtils.isEmpty(selection[0]) ? null : selection[0]);
+        String limit = (selection == null || TextUtils.isEmpty(selection[1]) ? Integer.toString(cLogPageSize) : selection[1]);
 
-                    cv.clear();
-                    cv.put("package", packageName);
-                    cv.put("uid", uid);
-                    cv.put("name", hook.getGroup());
-                    cv.put("used", time);
-                    rows = db.insertWithOnConflict("`group`", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                    if (rows < 0)
-                        throw new Throwable("Error inserting group");
-                }
+        int cuid = Binder.getCallingUid();
+        int userid = Util.getUserId(cuid);
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+        List<String> args = new ArrayList<>();
+        args.add(Integer.toString(start));
+        args.add(Integer.toString(end));
+        if (before != null)
+            args.add(before);
+
+        // Newest first, the rowid is the paging token
+        dbLock.readLock().lock();
+        try {
+            return db.query(
+                    "usage",
+                    new String[]{"rowid AS id", "package", "uid", "hook", "time AS used", "old", "new"},
+                    "restricted = 1 AND uid >= ? AND uid <= ?" + (before == null ? "" : " AND rowid < ?"),
+                    args.toArray(new String[0]),
+                    null, null, "rowid DESC", limit);
         } finally {
-            dbLock.writeLock().unlock();
+            dbLock.readLock().unlock();
         }
+    }
 
-        long ident = Binder.clearCallingIdentity();
-        try {
-            Context ctx = Util.createContextForUser(context, userid);
-            PackageManager pm = ctx.getPackageManager();
-            Resources resources = pm.getResourcesForApplication(BuildConfig.APPLICATION_ID);
-
-            // Notify usage
-            if (hook != null && "use".equals(event) && restricted == 1 &&
-                    (hook.doNotify() || (notify && used < 0))) {
-                // Get group name
-                String name = hook.getGroup().toLowerCase().replaceAll("[^a-z]", "_");
-                int resId = resources.getIdentifier("group_" + name, "string", BuildConfig.APPLICATION_ID);
-                String group = (resId == 0 ? hookid : resources.getString(resId));
-
-                // Build notification
-                Notification.Builder builder = new Notification.Builder(ctx);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                    builder.setChannelId(cChannelName);
-                builder.setSmallIcon(android.R.drawable.ic_dialog_info);
-                builder.setContentTitle(resources.getString(R.string.msg_usage, group));
-                builder.setContentText(pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)));
-                if (BuildConfig.DEBUG)
-                    builder.setSubText(hookid);
-
-                builder.setPriority(Notification.PRIORITY_DEFAULT);
-                builder.setCategory(Notification.CATEGORY_STATUS);
-                builder.setVisibility(Notification.VISIBILITY_SECRET);
-
-                // Main
-                Intent main = ctx.getPackageManager().getLaunchIntentForPackage(BuildConfig.APPLICATION_ID);
-                if (main != null) {
-                    int flags = (Build.VERSION.SDK_INT > Build.VERSION_CODES.R ? 0x04000000 : 0);
-                    main.putExtra(ActivityMain.EXTRA_SEARCH_PACKAGE, packageName);
-                    PendingIntent pi = PendingIntent.getActivity(ctx, uid, main, flags);
-                    builder.setContentIntent(pi);
-                }
+    private static Cursor getUsage(Context context, String[] selection) throws Throwable {
+        enforcePermission(context);
 
-                builder.setAutoCancel(true);
+        // Bucket size, since time and optional package
+        if (selection == null || selection.length != 3)
+            throw new IllegalArgumentException("selection invalid");
 
-                Util.notifyAsUser(ctx, "xlua_use_" + hook.getGroup(), uid, builder.build(), userid);
-            }
+        long size = Long.parseLong(selection[0]);
+        long since = Long.parseLong(selection[1]);
+        String packageName = (TextUtils.isEmpty(selection[2]) ? null : selection[2]);
 
-            // Notify exception
-            if (data.containsKey("exception")) {
-                Notification.Builder builder = new Notification.Builder(ctx);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                    builder.setChannelId(cChannelName);
-                builder.setSmallIcon(android.R.drawable.ic_dialog_alert);
-                builder.setContentTitle(resources.getString(R.string.msg_exception, hookid));
-                builder.setContentText(pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)));
-
-                builder.setPriority(Notification.PRIORITY_HIGH);
-                builder.setCategory(Notification.CATEGORY_STATUS);
-                builder.setVisibility(Notification.VISIBILITY_SECRET);
-
-                // Main
-                Intent main = ctx.getPackageManager().getLaunchIntentForPackage(BuildConfig.APPLICATION_ID);
-                if (main != null) {
-                    int flags = (Build.VERSION.SDK_INT > Build.VERSION_CODES.R ? 0x04000000 : 0);
-                    main.putExtra(ActivityMain.EXTRA_SEARCH_PACKAGE, packageName);
-                    PendingIntent pi = PendingIntent.getActivity(ctx, uid, main, flags);
-                    builder.setContentIntent(pi);
-                }
+        int cuid = Binder.getCallingUid();
+        int userid = Util.getUserId(cuid);
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
 
-                builder.setAutoCancel(true);
+        List<String> args = new ArrayList<>();
+        args.add(Long.toString(size));
+        args.add(Long.toString(since));
+        args.add(Integer.toString(start));
+        args.add(Integer.toString(end));
+        if (packageName != null)
+            args.add(packageName);
 
-                Util.notifyAsUser(ctx, "xlua_exception", uid, builder.build(), userid);
-            }
+        dbLock.readLock().lock();
+        try {
+            return db.query(
+                    "usage_rollup",
+                    new String[]{"package", "uid", "hook", "bucket", "count", "restricted"},
+                    "size = ? AND bucket >= ? AND uid >= ? AND uid <= ?" +
+                            (packageName == null ? "" : " AND package = ?"),
+                    args.toArray(new String[0]),
+                    null, null, "bucket");
         } finally {
-            Binder.restoreCallingIdentity(ident);
+            dbLock.readLock().unlock();
         }
-
-        return new Bundle();
     }
 
-    private static Cursor getLog(Context context, String[] selection) throws Throwable {
+    private static Cursor getChanges(Context context, String[] selection) throws Throwable {
         enforcePermission(context);
 
-        if (selection != null)
+        if (selection == null || selection.length != 1)
             throw new IllegalArgumentException("selection invalid");
 
+        long since = Long.parseLong(selection[0]);
+
         int cuid = Binder.getCallingUid();
         int userid = Util.getUserId(cuid);
-        int start = Util.getUserUid(userid, 0);
-        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+        String start = Integer.toString(Util.getUserUid(userid, 0));
+        String end = Integer.toString(Util.getUserUid(userid, Process.LAST_APPLICATION_UID));
+
+        String[] columns = new String[]{
+                "package", "uid", "hook", "installed", "used", "restricted", "exception", "old", "new",
+                "sequence", "removed"};
+        List<Object[]> rows = new ArrayList<>();
+        long sequence;
 
         dbLock.readLock().lock();
         try {
-            db.beginTransaction();
+            sequence = changeSequence;
+
+            Cursor cursor = null;
             try {
-                Cursor cursor = db.query(
+                cursor = db.query(
                         "assignment",
-                        new String[]{"package", "uid", "hook", "used", "old", "new"},
-                        "restricted = 1 AND uid >= ? AND uid <= ?",
-                        new String[]{Integer.toString(start), Integer.toString(end)},
-                        null, null, "used DESC");
-
-                db.setTransactionSuccessful();
+                        new String[]{"package", "uid", "hook", "installed", "used", "restricted", "exception", "old", "new", "sequence"},
+                        "sequence > ? AND uid >= ? AND uid <= ?",
+                        new String[]{Long.toString(since), start, end},
+                        null, null, null);
+                while (cursor.moveToNext())
+                    rows.add(new Object[]{
+                            cursor.getString(0), cursor.getInt(1), cursor.getString(2),
+                            cursor.getLong(3), cursor.getLong(4), cursor.getInt(5),
+                            cursor.getString(6), cursor.getString(7), cursor.getString(8),
+                            cursor.getLong(9), 0});
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
 
-                return cursor;
+            cursor = null;
+            try {
+                cursor = db.query(
+                        "removal",
+                        new String[]{"package", "uid", "hook", "sequence"},
+                        "sequence > ? AND uid >= ? AND uid <= ?",
+                        new String[]{Long.toString(since), start, end},
+                        null, null, null);
+                while (cursor.moveToNext())
+                    rows.add(new Object[]{
+                            cursor.getString(0), cursor.getInt(1), cursor.getString(2),
+                            null, null, null, null, null, null,
+                            cursor.getLong(3), 1});
             } finally {
-                db.endTransaction();
+                if (cursor != null)
+                    cursor.close();
             }
         } finally {
             dbLock.readLock().unlock();
         }
+
+        // Apply in order
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] r1, Object[] r2) {
+                return Long.compare((Long) r1[9], (Long) r2[9]);
+            }
+        });
+
+        MatrixCursor result = new MatrixCursor(columns, rows.size());
+        for (Object[] row : rows)
+            result.addRow(row);
+
+        Bundle extras = new Bundle();
+        extras.putLong("sequence", sequence);
+        result.setExtras(extras);
+        return result;
     }
 
     private static List<String> getCollection(Context context, int userid) throws Throwable {
@@ -871,29 +1666,11 @@ class XProvider {
         String name = extras.getString("name");
 
         String value = null;
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query("setting", new String[]{"value"},
-                            "user = ? AND category = ? AND name = ?",
-                            new String[]{Integer.toString(userid), category, name},
-                            null, null, null);
-                    if (cursor.moveToNext())
-                        value = (cursor.isNull(0) ? null : cursor.getString(0));
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
-        } finally {
-            dbLock.readLock().unlock();
+        loadSettings(userid);
+        synchronized (settingCache) {
+            Map<String, Map<String, String>> categories = settingCache.get(userid);
+            if (categories != null && categories.containsKey(category))
+                value = categories.get(category).get(name);
         }
 
         if (BuildConfig.DEBUG)
@@ -939,6 +1716,15 @@ class XProvider {
             } finally {
                 db.endTransaction();
             }
+
+            putSettingCache(userid, category, name, value);
+            if ("collection".equals(name)) {
+                synchronized (lock) {
+                    assignedCache.clear();
+                }
+                touchApps();
+            } else if ("forcestop".equals(name))
+                touchApp(userid, category);
         } finally {
             dbLock.writeLock().unlock();
         }
@@ -979,15 +1765,18 @@ class XProvider {
                     cv.put("used", -1);
                     cv.put("restricted", 0);
                     cv.putNull("exception");
-                    long rows = db.insertWithOnConflict("assignment", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                    if (rows < 0)
-                        throw new Throwable("Error inserting assignment");
+                    insertAssignment(cv);
                 }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
+
+            synchronized (lock) {
+                assignedCache.remove(packageName + ":" + uid);
+            }
+            touchApp(Util.getUserId(uid), packageName);
         } finally {
             dbLock.writeLock().unlock();
         }
@@ -1000,6 +1789,66 @@ class XProvider {
         return new Bundle();
     }
 
+    private static Bundle updateApp(Context context, Bundle extras) throws Throwable {
+        enforcePermission(context);
+
+        String packageName = extras.getString("packageName");
+        int uid = extras.getInt("uid");
+        int userid = Util.getUserId(uid);
+
+        synchronized (labelCache) {
+            labelCache.remove(userid + ":" + packageName);
+        }
+        synchronized (permissionCache) {
+            if (packageName.startsWith(BuildConfig.APPLICATION_ID))
+                permissionCache.clear();
+            else
+                permissionCache.remove(Util.getAppId(uid));
+        }
+        if (packageName.startsWith(BuildConfig.APPLICATION_ID)) {
+            synchronized (groupCache) {
+                groupCache.clear();
+            }
+            return new Bundle();
+        }
+
+        boolean cached;
+        synchronized (appCache) {
+            appUpdates++;
+            cached = appCache.containsKey(userid);
+        }
+
+        if (cached) {
+            // Query the package manager without holding appCache
+            XApp app;
+            long ident = Binder.clearCallingIdentity();
+            try {
+                PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+                try {
+                    ApplicationInfo ai = pm.getApplicationInfo(packageName, 0);
+                    app = getApp(pm, ai);
+                } catch (PackageManager.NameNotFoundException ignored) {
+                    app = null;
+                }
+            } finally {
+                Binder.restoreCallingIdentity(ident);
+            }
+
+            synchronized (appCache) {
+                AppSnapshot snapshot = appCache.get(userid);
+                if (app == null)
+                    snapshot.apps.remove(packageName);
+                else
+                    snapshot.apps.put(packageName, app);
+                snapshot.changed.put(packageName, ++appSequence);
+            }
+        }
+
+        Log.i(TAG, "Updated app " + packageName + ":" + uid);
+
+        return new Bundle();
+    }
+
     private static Bundle clearApp(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
@@ -1016,8 +1865,19 @@ class XProvider {
         try {
             db.beginTransaction();
             try {
-                assignments = db.delete(
-                        "assignment",
+                assignments = removeAssignments(
+                        "package = ? AND uid = ?",
+                        new String[]{packageName, Integer.toString(uid)});
+                db.delete(
+                        "hint",
+                        "package = ? AND uid = ?",
+                        new String[]{packageName, Integer.toString(uid)});
+                db.delete(
+                        "usage",
+                        "package = ? AND uid = ?",
+                        new String[]{packageName, Integer.toString(uid)});
+                db.delete(
+                        "usage_rollup",
                         "package = ? AND uid = ?",
                         new String[]{packageName, Integer.toString(uid)});
                 if (full)
@@ -1030,6 +1890,16 @@ class XProvider {
             } finally {
                 db.endTransaction();
             }
+
+            synchronized (lock) {
+                assignedCache.remove(packageName + ":" + uid);
+            }
+            touchApp(userid, packageName);
+            if (full)
+                synchronized (settingCache) {
+                    if (settingCache.containsKey(userid))
+                        settingCache.get(userid).remove(packageName);
+                }
         } finally {
             dbLock.writeLock().unlock();
         }
@@ -1055,6 +1925,10 @@ class XProvider {
             try {
                 if (userid == 0) {
                     db.delete("assignment", null, null);
+                    db.delete("removal", null, null);
+                    db.delete("hint", null, null);
+                    db.delete("usage", null, null);
+                    db.delete("usage_rollup", null, null);
                     db.delete("setting", null, null);
                 } else {
                     int start = Util.getUserUid(userid, 0);
@@ -1063,6 +1937,22 @@ class XProvider {
                             "assignment",
                             "uid >= ? AND uid <= ?",
                             new String[]{Integer.toString(start), Integer.toString(end)});
+                    db.delete(
+                            "removal",
+                            "uid >= ? AND uid <= ?",
+                            new String[]{Integer.toString(start), Integer.toString(end)});
+                    db.delete(
+                            "hint",
+                            "uid >= ? AND uid <= ?",
+                            new String[]{Integer.toString(start), Integer.toString(end)});
+                    db.delete(
+                            "usage",
+                            "uid >= ? AND uid <= ?",
+                            new String[]{Integer.toString(start), Integer.toString(end)});
+                    db.delete(
+                            "usage_rollup",
+                            "uid >= ? AND uid <= ?",
+                            new String[]{Integer.toString(start), Integer.toString(end)});
                     db.delete(
                             "setting",
                             "user = ?",
@@ -1073,6 +1963,17 @@ class XProvider {
             } finally {
                 db.endTransaction();
             }
+
+            synchronized (lock) {
+                assignedCache.clear();
+            }
+            touchApps();
+            synchronized (settingCache) {
+                if (userid == 0)
+                    settingCache.clear();
+                else
+                    settingCache.remove(userid);
+            }
         } finally {
             dbLock.writeLock().unlock();
         }
@@ -1080,21 +1981,60 @@ class XProvider {
         return new Bundle();
     }
 
+    // Call in a transaction
+    private static void insertAssignment(ContentValues cv) throws Throwable {
+        cv.put("sequence", ++changeSequence);
+        long rows = db.insertWithOnConflict("assignment", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        if (rows < 0)
+            throw new Throwable("Error inserting assignment");
+
+        db.delete("removal",
+                "package = ? AND uid = ? AND hook = ?",
+                new String[]{cv.getAsString("package"), cv.getAsString("uid"), cv.getAsString("hook")});
+    }
+
+    // Call in a transaction, records the removals for getChanges
+    private static long removeAssignments(String where, String[] args) throws Throwable {
+        Object[] bind = new Object[args.length + 1];
+        bind[0] = ++changeSequence;
+        System.arraycopy(args, 0, bind, 1, args.length);
+        db.execSQL("INSERT OR REPLACE INTO removal (package, uid, hook, sequence)" +
+                " SELECT package, uid, hook, ? FROM assignment WHERE " + where, bind);
+
+        long rows = db.delete("assignment", where, args);
+        if (rows < 0)
+            throw new Throwable("Error deleting assignment");
+        return rows;
+    }
+
     private static void enforcePermission(Context context) throws SecurityException {
         int cuid = Util.getAppId(Binder.getCallingUid());
 
+        // Allow system
+        if (cuid == Process.SYSTEM_UID)
+            return;
+
+        // Allow previously allowed
+        synchronized (permissionCache) {
+            if (permissionCache.containsKey(cuid)) {
+                permissionHits++;
+                return;
+            }
+            permissionChecks++;
+        }
+
         // Access package manager as system user
         long ident = Binder.clearCallingIdentity();
         try {
-            // Allow system
-            if (cuid == Process.SYSTEM_UID)
-                return;
-
             // Allow same signature
             PackageManager pm = context.getPackageManager();
             int uid = pm.getApplicationInfo(BuildConfig.APPLICATION_ID, 0).uid;
-            if (pm.checkSignatures(cuid, uid) == PackageManager.SIGNATURE_MATCH)
+            if (pm.checkSignatures(cuid, uid) == PackageManager.SIGNATURE_MATCH) {
+                synchronized (permissionCache) {
+                    permissionCache.put(cuid, true);
+                }
                 return;
+            }
 
             // Allow specific signature
             String[] cpkg = pm.getPackagesForUid(cuid);
@@ -1105,8 +2045,12 @@ class XProvider {
                     sb.append(Integer.toString(b & 0xff, 16).toLowerCase());
 
                 Resources resources = pm.getResourcesForApplication(BuildConfig.APPLICATION_ID);
-                if (sb.toString().equals(resources.getString(R.string.pro_fingerprint)))
+                if (sb.toString().equals(resources.getString(R.string.pro_fingerprint))) {
+                    synchronized (permissionCache) {
+                        permissionCache.put(cuid, true);
+                    }
                     return;
+                }
             }
             throw new SecurityException("Signature error cuid=" + cuid);
         } catch (Throwable ex) {
@@ -1131,35 +2075,118 @@ class XProvider {
 
         // Read external definitions
         dbLock.readLock().lock();
+        try {
+            Cursor cursor = null;
+            try {
+                cursor = db.query("hook", null,
+                        null, null,
+                        null, null, null);
+                int colDefinition = cursor.getColumnIndex("definition");
+                while (cursor.moveToNext()) {
+                    String definition = cursor.getString(colDefinition);
+                    XHook hook = XHook.fromJSON(definition);
+                    hook.resolveClassName(context);
+                    hooks.put(hook.getId(), hook);
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        } finally {
+            dbLock.readLock().unlock();
+        }
+
+        Log.i(TAG, "Loaded hook definitions hooks=" + hooks.size() + " builtins=" + builtins.size());
+
+        compileHooks();
+    }
+
+    // Precompile scripts once, apps only need to load the bytecode
+    private static void compileHooks() throws Throwable {
+        bytecode = new HashMap<>();
+
+        // Get stored bytecode
+        Map<String, byte[]> stored = new HashMap<>();
+        dbLock.readLock().lock();
+        try {
+            Cursor cursor = null;
+            try {
+                cursor = db.query("script", new String[]{"hash", "bytecode"},
+                        null, null,
+                        null, null, null);
+                while (cursor.moveToNext())
+                    stored.put(cursor.getString(0), cursor.getBlob(1));
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        } finally {
+            dbLock.readLock().unlock();
+        }
+
+        // Compile new and changed scripts
+        long start = SystemClock.elapsedRealtime();
+        Map<String, byte[]> compiled = new HashMap<>();
+        List<String> used = new ArrayList<>();
+        for (XHook hook : hooks.values()) {
+            String hash = getScriptHash(hook);
+            byte[] code = (stored.containsKey(hash) ? stored.get(hash) : compiled.get(hash));
+            if (code == null) {
+                code = compileScript(hook);
+                if (code != null)
+                    compiled.put(hash, code);
+            }
+            if (code != null)
+                bytecode.put(hook.getId(), code);
+            used.add(hash);
+        }
+        Log.i(TAG, "Compiled scripts=" + compiled.size() + " stored=" + stored.size() +
+                " duration=" + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        // Persist bytecode
+        dbLock.writeLock().lock();
         try {
             db.beginTransaction();
             try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query("hook", null,
-                            null, null,
-                            null, null, null);
-                    int colDefinition = cursor.getColumnIndex("definition");
-                    while (cursor.moveToNext()) {
-                        String definition = cursor.getString(colDefinition);
-                        XHook hook = XHook.fromJSON(definition);
-                        hook.resolveClassName(context);
-                        hooks.put(hook.getId(), hook);
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
+                for (String hash : compiled.keySet()) {
+                    ContentValues cv = new ContentValues();
+                    cv.put("hash", hash);
+                    cv.put("bytecode", compiled.get(hash));
+                    long rows = db.insertWithOnConflict("script", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+                    if (rows < 0)
+                        throw new Throwable("Error inserting script");
                 }
 
+                // Drop bytecode of changed scripts and other module versions
+                for (String hash : stored.keySet())
+                    if (!used.contains(hash))
+                        db.delete("script", "hash = ?", new String[]{hash});
+
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            dbLock.readLock().unlock();
+            dbLock.writeLock().unlock();
         }
+    }
 
-        Log.i(TAG, "Loaded hook definitions hooks=" + hooks.size() + " builtins=" + builtins.size());
+    private static String getScriptHash(XHook hook) throws Throwable {
+        return Util.getSha1(BuildConfig.VERSION_CODE + ":" + hook.getLuaScript());
+    }
+
+    private static byte[] compileScript(XHook hook) {
+        try {
+            InputStream is = new ByteArrayInputStream(hook.getLuaScript().getBytes());
+            Prototype compiledScript = LuaC.instance.compile(is, "script");
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DumpState.dump(compiledScript, bos, false);
+            return bos.toByteArray();
+        } catch (Throwable ex) {
+            // The app will compile the script again and report the error
+            Log.w(TAG, "Compile hook=" + hook.getId() + " ex=" + ex);
+            return null;
+        }
     }
 
     private static SQLiteDatabase getDatabase(Context context) throws Throwable {
@@ -1177,8 +2204,11 @@ class XProvider {
         }
 
         // Open database
+        // Write-ahead logging lets reads outside a transaction run on pooled connections,
+        // concurrently with each other and with a writer
         SQLiteDatabase _db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
-        Log.i(TAG, "Database file=" + dbFile);
+        boolean wal = _db.enableWriteAheadLogging();
+        Log.i(TAG, "Database file=" + dbFile + " wal=" + wal);
 
         if (!Util.isVirtualXposed()) {
             // Set database file permissions
@@ -1298,6 +2328,73 @@ class XProvider {
                 }
             }
 
+            if (_db.needUpgrade(6)) {
+                Log.i(TAG, "Database upgrade version 6");
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("CREATE TABLE script (hash TEXT NOT NULL, bytecode BLOB NOT NULL)");
+                    _db.execSQL("CREATE UNIQUE INDEX idx_script ON script(hash)");
+
+                    _db.setVersion(6);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            if (_db.needUpgrade(7)) {
+                Log.i(TAG, "Database upgrade version 7");
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("CREATE TABLE hint (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, version INTEGER NOT NULL, member TEXT NOT NULL)");
+                    _db.execSQL("CREATE UNIQUE INDEX idx_hint ON hint(package, uid, hook)");
+
+                    _db.setVersion(7);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            if (_db.needUpgrade(8)) {
+                Log.i(TAG, "Database upgrade version 8");
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("ALTER TABLE assignment ADD COLUMN sequence INTEGER");
+                    _db.execSQL("UPDATE assignment SET sequence = 0");
+                    _db.execSQL("CREATE INDEX idx_assignment_sequence ON assignment(sequence)");
+
+                    _db.execSQL("CREATE TABLE removal (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, sequence INTEGER NOT NULL)");
+                    _db.execSQL("CREATE UNIQUE INDEX idx_removal ON removal(package, uid, hook)");
+                    _db.execSQL("CREATE INDEX idx_removal_sequence ON removal(sequence)");
+
+                    _db.setVersion(8);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
+            if (_db.needUpgrade(9)) {
+                Log.i(TAG, "Database upgrade version 9");
+                _db.beginTransaction();
+                try {
+                    _db.execSQL("CREATE TABLE usage (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, time INTEGER NOT NULL, restricted INTEGER NOT NULL, old TEXT, new TEXT)");
+                    // Seed the log with the last use of each assignment, oldest first to keep the rowid order
+                    _db.execSQL("INSERT INTO usage (package, uid, hook, time, restricted, old, new)" +
+                            " SELECT package, uid, hook, used, restricted, old, new FROM assignment WHERE used > 0 ORDER BY used");
+
+                    _db.execSQL("CREATE TABLE usage_rollup (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, size INTEGER NOT NULL, bucket INTEGER NOT NULL, count INTEGER NOT NULL, restricted INTEGER NOT NULL)");
+                    _db.execSQL("CREATE UNIQUE INDEX idx_usage_rollup ON usage_rollup(package, uid, hook, size, bucket)");
+                    _db.execSQL("CREATE INDEX idx_usage_rollup_bucket ON usage_rollup(size, bucket)");
+
+                    _db.setVersion(9);
+                    _db.setTransactionSuccessful();
+                } finally {
+                    _db.endTransaction();
+                }
+            }
+
             //deleteHook(_db, "Privacy.ContentResolver/query1");
             //deleteHook(_db, "Privacy.ContentResolver/query16");
             //deleteHook(_db, "Privacy.ContentResolver/query26");
@@ -1320,10 +2417,16 @@ class XProvider {
 
             Log.i(TAG, "Database version=" + _db.getVersion());
 
+            // Continue change sequence
+            changeSequence = Math.max(
+                    getMaxSequence(_db, "assignment"),
+                    getMaxSequence(_db, "removal"));
+
             // Reset usage data
             ContentValues cv = new ContentValues();
             cv.put("installed", -1);
             cv.putNull("exception");
+            cv.put("sequence", ++changeSequence);
             long rows = _db.update("assignment", cv, null, null);
             Log.i(TAG, "Reset assigned hook data count=" + rows);
 
@@ -1336,6 +2439,17 @@ class XProvider {
         }
     }
 
+    private static long getMaxSequence(SQLiteDatabase _db, String table) {
+        Cursor cursor = null;
+        try {
+            cursor = _db.query(table, new String[]{"MAX(sequence)"}, null, null, null, null, null);
+            return (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
     private static void renameHook(SQLiteDatabase _db, String oldId, String newId) {
         try {
             ContentValues cv = new ContentValues();
@@ -1416,4 +2530,39 @@ class XProvider {
     static void putSettingBoolean(Context context, String category, String name, boolean value) {
         putSetting(context, category, name, Boolean.toString(value));
     }
+
+    private static class AssignedHooks {
+        final List<XAssignment> assignments;
+        private byte[] payload = null;
+
+        AssignedHooks(List<XAssignment> assignments) {
+            this.assignments = assignments;
+        }
+
+        // Hooks with bytecode as sent on bootstrap, call with lock held
+        byte[] getPayload() {
+            if (this.payload == null) {
+                Parcel parcel = Parcel.obtain();
+                try {
+                    parcel.writeInt(this.assignments.size());
+                    for (XAssignment assignment : this.assignments) {
+                        assignment.hook.writeToParcel(parcel, XHook.FLAG_WITH_LUA);
+                        parcel.writeByteArray(bytecode.get(assignment.hook.getId()));
+                    }
+                    this.payload = parcel.marshall();
+                } finally {
+                    parcel.recycle();
+                }
+            }
+            return this.payload;
+        }
+    }
+
+    private static class AppSnapshot {
+        final Map<String, XApp> apps = new HashMap<>();
+        // package > sequence of last change, including removed packages
+        final Map<String, Long> changed = new HashMap<>();
+        // changes before this sequence are unknown
+        long reset;
+    }
 }
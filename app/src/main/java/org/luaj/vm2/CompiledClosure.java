@@ -0,0 +1,182 @@
+/*******************************************************************************
+* Copyright (c) 2009 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Extension of {@link LuaFunction} which executes a {@link Prototype}
+ * translated into Java source ahead of time.
+ * <p>
+ * Subclasses are generated by {@link org.luaj.vm2.luajc.JavaGen} at build time
+ * and implement {@link #execute(LuaValue[], Varargs)} with the same semantics as
+ * {@link LuaClosure}, but with the instructions decoded and dispatched by the Java compiler.
+ * This allows ahead-of-time compilation on platforms without run time bytecode generation.
+ * <p>
+ * Debug hooks are not called for generated functions.
+ * @see LuaClosure
+ * @see org.luaj.vm2.luajc.JavaGen
+ */
+public abstract class CompiledClosure extends LuaFunction {
+	private static final UpValue[] NOUPVALUES = new UpValue[0];
+
+	public final UpValue[] upValues;
+
+	protected final Globals globals;
+
+	private final String source;
+	private final int linedefined;
+	private final int numparams;
+	private final boolean vararg;
+	private final int maxstacksize;
+	private final int[] lineinfo;
+
+	/** Create a generated closure with a specific environment.
+	 * If the prototype has upvalues, the environment will be written into the first upvalue.
+	 */
+	protected CompiledClosure(String source, int linedefined, int nups, int numparams,
+			boolean vararg, int maxstacksize, int[] lineinfo, LuaValue env) {
+		this.source = source;
+		this.linedefined = linedefined;
+		this.numparams = numparams;
+		this.vararg = vararg;
+		this.maxstacksize = maxstacksize;
+		this.lineinfo = lineinfo;
+		this.upValues = (nups == 0? NOUPVALUES: new UpValue[nups]);
+		if (nups > 0)
+			this.upValues[0] = new UpValue(new LuaValue[] {env}, 0);
+		this.globals = env instanceof Globals? (Globals) env: null;
+	}
+
+	public LuaValue getmetatable() {
+		return s_metatable;
+	}
+
+	public String tojstring() {
+		return "function: " + name();
+	}
+
+	public String name() {
+		return "<"+source+":"+linedefined+">";
+	}
+
+	public final LuaValue call() {
+		LuaValue[] stack = new LuaValue[maxstacksize];
+		for (int i = 0; i < numparams; ++i )
+			stack[i] = NIL;
+		return execute(stack,NONE).arg1();
+	}
+
+	public final LuaValue call(LuaValue arg) {
+		LuaValue[] stack = new LuaValue[maxstacksize];
+		System.arraycopy(NILS, 0, stack, 0, maxstacksize);
+		switch ( numparams ) {
+		default: stack[0]=arg; return execute(stack,NONE).arg1();
+		case 0: return execute(stack,arg).arg1();
+		}
+	}
+
+	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
+		LuaValue[] stack = new LuaValue[maxstacksize];
+		for (int i = 2; i < numparams; ++i )
+			stack[i] = NIL;
+		switch ( numparams ) {
+		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE).arg1();
+		case 1: stack[0]=arg1; return execute(stack,arg2).arg1();
+		case 0: return execute(stack,vararg? varargsOf(arg1,arg2): NONE).arg1();
+		}
+	}
+
+	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+		LuaValue[] stack = new LuaValue[maxstacksize];
+		for (int i = 3; i < numparams; ++i )
+			stack[i] = NIL;
+		switch ( numparams ) {
+		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE).arg1();
+		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3).arg1();
+		case 1: stack[0]=arg1; return execute(stack,vararg? varargsOf(arg2,arg3): NONE).arg1();
+		case 0: return execute(stack,vararg? varargsOf(arg1,arg2,arg3): NONE).arg1();
+		}
+	}
+
+	public final Varargs invoke(Varargs varargs) {
+		return onInvoke(varargs).eval();
+	}
+
+	public final Varargs onInvoke(Varargs varargs) {
+		LuaValue[] stack = new LuaValue[maxstacksize];
+		for ( int i=0; i<numparams; i++ )
+			stack[i] = varargs.arg(i+1);
+		return execute(stack,vararg? varargs.subargs(numparams+1): NONE);
+	}
+
+	/** Execute the translated instructions, see {@link LuaClosure#execute(LuaValue[], Varargs)} */
+	protected abstract Varargs execute(LuaValue[] stack, Varargs varargs);
+
+	/** Find the open upvalue for a stack index, null if not open */
+	protected static UpValue findupval(UpValue openups, int idx) {
+		return LuaClosure.findupval(openups, idx);
+	}
+
+	/** Close the open upvalues at or above a stack index, returns the upvalues which remain open */
+	protected static UpValue closeups(UpValue openups, int index) {
+		return LuaClosure.closeups(openups, index);
+	}
+
+	/** Look up a method for an OP_SELF instruction, see {@link InlineCache} */
+	protected static LuaValue self(InlineCache[] caches, int index, LuaValue o, LuaValue name) {
+		return InlineCache.self(caches, index, o, name);
+	}
+
+	protected static void copyto(Varargs v, LuaValue[] stack, int offset, int length) {
+		v.copyto(stack, offset, length);
+	}
+
+	protected static Varargs dealias(Varargs v) {
+		return v.dealias();
+	}
+
+	/** Add line information to an error raised at an instruction */
+	protected LuaError onError(Throwable e, int pc) {
+		LuaError le = (e instanceof LuaError? (LuaError) e: new LuaError(e));
+		if (le.traceback == null) {
+			le.fileline = source + ":"
+				+ (lineinfo != null && pc >= 0 && pc < lineinfo.length? String.valueOf(lineinfo[pc]): "?");
+			le.traceback = errorHook(le.getMessage());
+		}
+		return le;
+	}
+
+	private String errorHook(String msg) {
+		if (globals == null ) return msg;
+		final LuaThread r = globals.running;
+		if (r.errorfunc == null)
+			return msg;
+		final LuaValue e = r.errorfunc;
+		r.errorfunc = null;
+		try {
+			return e.call( LuaValue.valueOf(msg) ).tojstring();
+		} catch ( Throwable t ) {
+			return "error in error handling";
+		} finally {
+			r.errorfunc = e;
+		}
+	}
+}
@@ -0,0 +1,531 @@
+/*******************************************************************************
+* Copyright (c) 2009 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Coroutine body which keeps its call frames on the heap instead of the Java stack.
+ * <p>
+ * Calls from lua to {@link LuaClosure}s push a {@link Frame} and returns pop it,
+ * so a {@link LuaThread} can be suspended by saving the current frame
+ * and resumed on any Java thread without dedicating a Java thread to it.
+ * A call to a function marked {@link LuaThread.YieldFunction} suspends
+ * the coroutine and the values passed to the next resume become its results.
+ * A call of a lua function by a function marked {@link LuaThread.PcallFunction}
+ * pushes a protected frame, so pcall does not prevent suspending.
+ * <p>
+ * Calls to Java functions, including metamethods, run on the Java stack as usual.
+ * A yield from lua called by such a function cannot save its frames, 
+ * so {@link LuaThread} keeps the Java thread running the continuation waiting until the next resume.
+ * Debug hooks are not called, {@link LuaThread} uses Java threads when a debug library is loaded.
+ * @see LuaThread
+ * @see LuaClosure
+ */
+final class Continuation {
+	/** Maximum number of nested lua calls before a stack overflow */
+	static final int MAX_FRAMES = 200000;
+
+	private final LuaThread.State state;
+	private final LuaClosure function;
+
+	/** Frame which receives the values of the next resume, null when the coroutine returns them */
+	private Frame frame;
+	private boolean started;
+	private boolean dead;
+	private int depth;
+	private int resumeProtect; // number of pcalls which return the values of the next resume
+
+	Continuation(LuaThread.State state, LuaClosure function) {
+		this.state = state;
+		this.function = function;
+	}
+
+	/** Call state of a lua function */
+	static final class Frame {
+		final Frame parent;
+		final LuaClosure closure;
+		final LuaValue[] stack;
+		final Varargs varargs;
+		int pc;
+		int top;
+		Varargs v = LuaValue.NONE;
+		UpValue openups;
+		int protect; // number of pcalls which called the function, errors return to the parent
+
+		Frame(Frame parent, LuaClosure closure, Varargs args) {
+			final Prototype p = closure.p;
+			this.parent = parent;
+			this.closure = closure;
+			this.stack = new LuaValue[p.maxstacksize];
+			for ( int i=0; i<p.numparams; i++ )
+				stack[i] = args.arg(i+1);
+			this.varargs = p.is_vararg!=0? args.subargs(p.numparams+1): LuaValue.NONE;
+		}
+	}
+
+	/** True when the function returned or failed */
+	boolean isdead() {
+		return dead;
+	}
+
+	/**
+	 * Run the coroutine until it yields or returns.
+	 * @param args the arguments of the function, or the results of the yield when suspended
+	 * @return the values passed to yield, or the return values
+	 */
+	Varargs resume(Varargs args) {
+		if (!started) {
+			started = true;
+			return execute(push(null, function, args), null);
+		}
+		Frame f = frame;
+		frame = null;
+		for (; resumeProtect > 0; resumeProtect--)
+			args = LuaValue.varargsOf(LuaValue.TRUE, args);
+		return execute(f, args);
+	}
+
+	private Frame push(Frame parent, LuaClosure closure, Varargs args) {
+		if (++depth > MAX_FRAMES)
+			throw new LuaError("stack overflow");
+		return new Frame(parent, closure, args);
+	}
+
+	private Varargs suspend(Frame f, Varargs args, int protect) {
+		frame = f;
+		resumeProtect = protect;
+		state.status = LuaThread.STATUS_SUSPENDED;
+		return args.dealias();
+	}
+
+	/**
+	 * Execute frames starting with the instruction at the pc of a frame.
+	 * When r is not null, the instruction at the pc is a call which returned r.
+	 */
+	private Varargs execute(Frame f, Varargs r) {
+		int i,a,b,c,pc,top;
+		int protect;
+		LuaValue o;
+		Varargs v, args;
+		UpValue openups;
+
+		frames:
+		for (;;) {
+			if (f == null) {
+				// the function returned
+				dead = true;
+				return r;
+			}
+			final LuaClosure cl = f.closure;
+			final Prototype p = cl.p;
+			final Globals globals = cl.globals;
+			final UpValue[] upValues = cl.upValues;
+			final int[] code = p.code;
+			final LuaValue[] k = p.k;
+			final LuaValue[] stack = f.stack;
+			final Varargs varargs = f.varargs;
+			pc = f.pc;
+			top = f.top;
+			v = f.v;
+			openups = f.openups;
+
+			try {
+				// complete the call which returned
+				if (r != null) {
+					i = code[pc];
+					a = ((i>>6) & 0xff);
+					c = (i>>14) & 0x1ff;
+					if ((i & 0x3f) == Lua.OP_TFORCALL) {
+						while (--c >= 0)
+							stack[a+3+c] = r.arg(c+1);
+						v = LuaValue.NONE;
+					} else if ( c > 0 ) {
+						r.copyto(stack, a, c-1);
+						v = LuaValue.NONE;
+					} else {
+						top = a + r.narg();
+						v = r.dealias();
+					}
+					r = null;
+					++pc;
+				}
+
+				// process instructions
+				for (; true; ++pc) {
+					// pull out instruction
+					i = code[pc];
+					a = ((i>>6) & 0xff);
+
+					// process the op code
+					switch ( i & 0x3f ) {
+
+					case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+						stack[a] = stack[i>>>23];
+						continue;
+					
+					case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+						stack[a] = k[i>>>14];
+						continue;
+					
+					case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
+		                stack[a] = (i>>>23!=0)? LuaValue.TRUE: LuaValue.FALSE;
+		                if ((i&(0x1ff<<14)) != 0)
+		                    ++pc; /* skip next instruction (if C) */
+		                continue;
+	
+					case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(A+B):= nil			*/
+						for ( b=i>>>23; b-->=0; )
+							stack[a++] = LuaValue.NIL;
+						continue;
+					
+					case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
+		                stack[a] = upValues[i>>>23].getValue();
+		                continue;
+					
+					case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
+						stack[a] = upValues[i>>>23].getValue().get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+	                
+					case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
+		                stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
+		                upValues[a].getValue().set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
+						upValues[i>>>23].setValue(stack[a]);
+						continue;
+					
+					case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
+						stack[a].set(((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]), (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
+						stack[a] = new LuaTable(i>>>23,(i>>14)&0x1ff);
+						continue;
+					
+					case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
+						stack[a+1] = (o = stack[i>>>23]);
+						stack[a] = (c=(i>>14)&0x1ff)>0xff? InlineCache.self(p, pc, o, k[c&0x0ff]): o.get(stack[c]);
+						continue;
+					
+					case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+						stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).pow((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+						continue;
+					
+					case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
+						stack[a] = stack[i>>>23].neg();
+						continue;
+					
+					case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
+						stack[a] = stack[i>>>23].not();
+						continue;
+					
+					case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
+						stack[a] = stack[i>>>23].len();
+						continue;
+					
+					case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
+						b = i>>>23;
+						c = (i>>14)&0x1ff;
+						{
+							if ( c > b+1 ) {
+								Buffer sb = stack[c].buffer();
+								while ( --c>=b ) 
+									sb = stack[c].concat(sb);
+								stack[a] = sb.value();
+							} else {
+								stack[a] = stack[c-1].concat(stack[c]);
+							}
+						}
+						continue;
+					
+					case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
+						pc  += (i>>>14)-0x1ffff;
+						if (a > 0)
+							openups = LuaClosure.closeups(openups, a-1);
+						continue;
+					
+					case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
+					
+					case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
+					
+					case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+						if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+							++pc;
+						continue;
+					
+					case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/ 
+						if ( stack[a].toboolean() != ((i&(0x1ff<<14))!=0) ) 
+							++pc;
+						continue;
+					
+					case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
+						/* note: doc appears to be reversed */
+						if ( (o=stack[i>>>23]).toboolean() != ((i&(0x1ff<<14))!=0) ) 
+							++pc;
+						else
+							stack[a] = o; // TODO: should be sBx? 
+						continue;
+					
+					case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+					case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+						b = i>>>23;
+						o = stack[a];
+						args = b>0?
+							LuaValue.varargsOf(stack, a+1, b-1): // exact arg count
+							LuaValue.varargsOf(stack, a+1, top-v.narg()-(a+1), v);  // from prev top
+						protect = 0;
+						while (o instanceof LuaThread.PcallFunction &&
+								(args.arg1() instanceof LuaClosure || args.arg1() instanceof LuaThread.PcallFunction)) {
+							protect++;
+							o = args.arg1();
+							args = args.subargs(2);
+						}
+						if ((i & 0x3f) == Lua.OP_TAILCALL) {
+							if (o instanceof LuaClosure) {
+								// the callee replaces the frame and returns to the caller
+								LuaClosure.closeups(openups, 0);
+								protect += f.protect;
+								f = new Frame(f.parent, (LuaClosure) o, args);
+								f.protect = protect;
+								r = null;
+								continue frames;
+							}
+							if (o instanceof LuaThread.YieldFunction) {
+								// the caller receives the values of the next resume
+								LuaClosure.closeups(openups, 0);
+								protect = f.protect;
+								f = f.parent;
+								--depth;
+								return suspend(f, args, protect);
+							}
+							r = o.invoke(args);
+							LuaClosure.closeups(openups, 0);
+							for (protect += f.protect; protect > 0; protect--)
+								r = LuaValue.varargsOf(LuaValue.TRUE, r);
+							f = f.parent;
+							--depth;
+							continue frames;
+						}
+						f.pc = pc; f.top = top; f.v = v; f.openups = openups;
+						if (o instanceof LuaClosure) {
+							f = push(f, (LuaClosure) o, args);
+							f.protect = protect;
+							r = null;
+							continue frames;
+						}
+						if (o instanceof LuaThread.YieldFunction)
+							return suspend(f, args, 0);
+						r = o.invoke(args);
+						for (; protect > 0; protect--)
+							r = LuaValue.varargsOf(LuaValue.TRUE, r);
+						continue frames;
+
+					case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
+						b = i>>>23;
+						switch ( b ) {
+						case 0: r = LuaValue.varargsOf(stack, a, top-v.narg()-a, v); break;
+						case 1: r = LuaValue.NONE; break;
+						case 2: r = stack[a]; break;
+						default: r = LuaValue.varargsOf(stack, a, b-1); break;
+						}
+						LuaClosure.closeups(openups, 0);
+						for (protect = f.protect; protect > 0; protect--)
+							r = LuaValue.varargsOf(LuaValue.TRUE, r);
+						f = f.parent;
+						--depth;
+						continue frames;
+
+				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+						{
+				            LuaValue limit = stack[a + 1];
+							LuaValue step  = stack[a + 2];
+							LuaValue idx   = step.add(stack[a]);
+				            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
+			                    stack[a] = idx;
+			                    stack[a + 3] = idx;
+			                    pc += (i>>>14)-0x1ffff;
+				            }
+						}
+						continue;
+					
+					case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+						{
+							LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
+							LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
+							LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
+							stack[a] = init.sub(step);
+							stack[a + 1] = limit;
+							stack[a + 2] = step;
+							pc += (i>>>14)-0x1ffff;
+						}
+						continue;
+
+					case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
+						o = stack[a];
+						args = LuaValue.varargsOf(stack[a+1],stack[a+2]);
+						f.pc = pc; f.top = top; f.v = v; f.openups = openups;
+						if (o instanceof LuaClosure) {
+							f = push(f, (LuaClosure) o, args);
+							r = null;
+							continue frames;
+						}
+						if (o instanceof LuaThread.YieldFunction)
+							return suspend(f, args, 0);
+						r = o.invoke(args);
+						continue frames;
+
+				case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
+						if (!stack[a+1].isnil()) { /* continue loop? */
+							stack[a] = stack[a+1];  /* save control varible. */
+							pc += (i>>>14)-0x1ffff;
+						}
+						continue;
+					
+					case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
+						{
+			                if ( (c=(i>>14)&0x1ff) == 0 )
+			                    c = code[++pc];
+			                int offset = (c-1) * Lua.LFIELDS_PER_FLUSH;
+			                o = stack[a];
+			                if ( (b=i>>>23) == 0 ) {
+			                    b = top - a - 1;
+			                    int m = b - v.narg(); 
+			                	int j=1;
+			                	for ( ;j<=m; j++ )
+			                    	o.set(offset+j, stack[a + j]);
+			                	for ( ;j<=b; j++ )
+			                    	o.set(offset+j, v.arg(j-m));
+			                } else {
+			                    o.presize( offset + b );
+			                    for (int j=1; j<=b; j++)
+			                    	o.set(offset+j, stack[a + j]);
+			                }
+						}
+						continue;
+					
+					case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/
+						{
+							Prototype newp = p.p[i>>>14];
+							LuaClosure ncl = new LuaClosure(newp, globals);
+							Upvaldesc[] uv = newp.upvalues;
+							for ( int j=0, nup=uv.length; j<nup; ++j ) {
+								if (uv[j].instack) { /* upvalue refes to local variable? */
+									UpValue u = LuaClosure.findupval(openups, uv[j].idx);
+									if (u == null)
+										openups = u = new UpValue(stack, uv[j].idx, openups);
+									ncl.upValues[j] = u;
+								} else  /* get upvalue from enclosing function */
+									ncl.upValues[j] = upValues[uv[j].idx];
+							}
+							stack[a] = ncl;
+						}
+						continue;
+					
+					case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+						b = i>>>23;
+						if ( b == 0 ) {
+							top = a + (b = varargs.narg());
+							v = varargs;
+						} else { 
+							for ( int j=1; j<b; ++j )
+								stack[a+j-1] = varargs.arg(j);
+						}
+						continue;				
+
+					default:
+						throw new java.lang.IllegalArgumentException("Illegal opcode: " + (i & 0x3f));
+					}
+				}
+			} catch ( LuaError le ) {
+				if (le.traceback == null)
+					cl.processErrorHooks(le, p, pc);
+				f = unwind(f, openups, le);
+				r = failure(le);
+			} catch ( Exception e ) {
+				LuaError le = new LuaError(e);
+				cl.processErrorHooks(le, p, pc);
+				f = unwind(f, openups, le);
+				r = failure(le);
+			}
+			// the innermost pcall returns the error, outer ones succeed
+			for (protect = f.protect; --protect > 0; )
+				r = LuaValue.varargsOf(LuaValue.TRUE, r);
+			f = f.parent;
+		}
+	}
+
+	/**
+	 * Pop the frames up to the nearest protected frame after an error, closing their upvalues.
+	 * @return the protected frame
+	 * @throws LuaError if no frame is protected
+	 */
+	private Frame unwind(Frame f, UpValue openups, LuaError le) {
+		LuaClosure.closeups(openups, 0);
+		for (;;) {
+			--depth;
+			if (f.protect > 0)
+				return f;
+			f = f.parent;
+			if (f == null)
+				break;
+			LuaClosure.closeups(f.openups, 0);
+		}
+		frame = null;
+		dead = true;
+		throw le;
+	}
+
+	/** Results of pcall for an error, the same as {@link org.luaj.vm2.lib.BaseLib} */
+	private static Varargs failure(LuaError le) {
+		final LuaValue m = le.getMessageObject();
+		return LuaValue.varargsOf(LuaValue.FALSE, m!=null? m: LuaValue.NIL);
+	}
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+* Copyright (c) 2009 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Inline cache of the method looked up by an OP_SELF instruction with a constant name.
+ * <p>
+ * Calls like {@code param:getResult()} look up the method by name on every call.
+ * When the receiver is a {@link LuaUserdata} with a {@link LuaUserdata#methodowner()}, 
+ * the method found for the name is remembered for the instruction together with the owner, 
+ * and returned without a lookup as long as the instruction sees receivers with the same owner.
+ * <p>
+ * Each instruction caches one owner, a receiver with another owner replaces the entry.
+ * Entries are immutable, so caches can be shared by threads without locking.
+ * @see LuaUserdata#methodowner()
+ * @see LuaUserdata#getmethod(LuaValue)
+ */
+public final class InlineCache {
+
+	final Object owner;
+	final LuaValue method;
+
+	private InlineCache(Object owner, LuaValue method) {
+		this.owner = owner;
+		this.method = method;
+	}
+
+	/** Look up a method for the OP_SELF instruction at pc of a prototype, creating its caches on first use */
+	static LuaValue self(Prototype p, int pc, LuaValue o, LuaValue name) {
+		if (!(o instanceof LuaUserdata))
+			return o.get(name);
+		InlineCache[] caches = p.selfcaches;
+		if (caches == null)
+			p.selfcaches = caches = new InlineCache[p.code.length];
+		return self(caches, pc, o, name);
+	}
+
+	/** Look up a method for the call site with an index in an array of caches */
+	static LuaValue self(InlineCache[] caches, int index, LuaValue o, LuaValue name) {
+		if (!(o instanceof LuaUserdata))
+			return o.get(name);
+		LuaUserdata u = (LuaUserdata) o;
+		Object owner = u.methodowner();
+		if (owner == null)
+			return o.get(name);
+		InlineCache c = caches[index];
+		if (c != null && c.owner == owner)
+			return c.method;
+		LuaValue m = u.getmethod(name);
+		if (m == null)
+			return o.get(name);
+		caches[index] = new InlineCache(owner, m);
+		return m;
+	}
+}
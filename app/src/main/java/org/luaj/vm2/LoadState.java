@@ -223,7 +223,7 @@ public class LoadState {
 			return null;
 		byte[] bytes = new byte[size];
 		is.readFully( bytes, 0, size );
-		return LuaString.valueUsing( bytes, 0, bytes.length - 1 );
+		return LuaString.intern(LuaString.valueUsing( bytes, 0, bytes.length - 1 ));
 	}
 	
 	/**
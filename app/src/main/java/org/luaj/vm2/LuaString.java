@@ -27,6 +27,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.luaj.vm2.lib.MathLib;
 
@@ -84,6 +87,12 @@ public class LuaString extends LuaValue {
 	/** The hashcode for this string.  Computed at construct time. */
 	private final int m_hashcode;
 
+	/** True if this is the instance in the intern table for its bytes. */
+	private boolean m_interned;
+
+	/** Weak table of interned strings, mapping each string to a weak reference to itself. */
+	private static final Map interned_strings = new WeakHashMap();
+
 	/** Size of cache of recent short strings. This is the maximum number of LuaStrings that 
 	 * will be retained in the cache of recent short strings.  Exposed to package for testing. */
 	static final int RECENT_STRINGS_CACHE_SIZE = 128;
@@ -141,6 +150,32 @@ public class LuaString extends LuaValue {
 		return s;
 	}
 
+	/**
+	 * Get the shared instance of a string with the same bytes.
+	 * <p>
+	 * Constants of compiled and loaded prototypes are interned, 
+	 * so equal constants of different prototypes are the same instance 
+	 * and compare by reference.  The table is weak, so strings which are 
+	 * no longer referenced elsewhere are removed by the garbage collector.
+	 * @param s the string to intern
+	 * @return the interned {@link LuaString} with the same bytes
+	 */
+	public static LuaString intern(LuaString s) {
+		if (s.m_interned)
+			return s;
+		synchronized (interned_strings) {
+			WeakReference ref = (WeakReference) interned_strings.get(s);
+			LuaString t = (ref == null? null: (LuaString) ref.get());
+			if (t == null) {
+				// don't keep a larger backing array alive
+				t = (s.m_offset == 0 && s.m_bytes.length == s.m_length? s: valueFromCopy(s.m_bytes, s.m_offset, s.m_length));
+				t.m_interned = true;
+				interned_strings.put(t, new WeakReference(t));
+			}
+			return t;
+		}
+	}
+
 	/** Construct a new LuaString using a copy of the bytes array supplied */
 	private static LuaString valueFromCopy(byte[] bytes, int off, int len) {
 		final byte[] copy = new byte[len];
@@ -479,6 +514,8 @@ public class LuaString extends LuaValue {
 	public boolean raweq( LuaString s ) { 
 		if ( this == s )
 			return true;
+		if ( m_interned && s.m_interned )
+			return false;
 		if ( s.m_length != m_length )
 			return false;
 		if ( s.m_bytes == m_bytes && s.m_offset == m_offset )
@@ -23,10 +23,19 @@ package org.luaj.vm2;
 
 
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** 
  * Subclass of {@link LuaValue} that implements 
- * a lua coroutine thread using Java Threads.
+ * a lua coroutine thread using heap frames or Java Threads.
  * <p>
  * A LuaThread is typically created in response to a scripted call to 
  * {@code coroutine.create()}
@@ -41,8 +50,17 @@ import java.lang.ref.WeakReference;
  * see to it that this {@link Globals} are initialized properly.
  * <p>
  * The behavior of coroutine threads matches closely the behavior 
- * of C coroutine library.  However, because of the use of Java threads 
- * to manage call state, it is possible to yield from anywhere in luaj. 
+ * of C coroutine library.  By default coroutines run on Java threads 
+ * to manage call state, so it is possible to yield from anywhere.  These are virtual 
+ * threads when the runtime has them, see {@link #coroutine_mode}.
+ * <p>
+ * With {@link #COROUTINE_STACKLESS} a coroutine of a {@link LuaClosure} 
+ * keeps its call frames on the heap instead, see {@link Continuation}, and each resume runs 
+ * on a pooled Java thread which is released when the coroutine yields from lua called by lua. 
+ * Only a yield from lua called by Java functions, such as metamethods, {@code table.sort} comparators 
+ * and {@code xpcall}, keeps the thread until the coroutine is resumed, 
+ * so suspended coroutines do not hold a thread each. 
+ * Other functions, and all functions when a debug library is loaded, still run on their own Java threads.
  * <p>
  * Each Java thread wakes up at regular intervals and checks a weak reference
  * to determine if it can ever be resumed.  If not, it throws 
@@ -81,6 +99,68 @@ public class LuaThread extends LuaValue {
 	 * collection is run.  This can be changed by Java startup code if desired.
 	 */
 	public static long thread_orphan_check_interval = 5000;
+
+	/** Run coroutines of lua functions with heap frames on pooled threads, other coroutines as {@link #COROUTINE_VIRTUAL}.
+	 * A thread is held while suspended only by a yield across calls from Java, see {@link Continuation}. */
+	public static final int COROUTINE_STACKLESS = 0;
+	/** Run coroutines on virtual threads if available, else on platform threads */
+	public static final int COROUTINE_VIRTUAL = 1;
+	/** Run coroutines on platform threads */
+	public static final int COROUTINE_PLATFORM = 2;
+
+	/** How new coroutines are run.  This can be changed by Java startup code if desired. */
+	public static int coroutine_mode = COROUTINE_VIRTUAL;
+
+	/** Marker for functions which yield the running coroutine when called,
+	 * which allows a {@link Continuation} to suspend without calling them. */
+	public interface YieldFunction {
+	}
+
+	/** Marker for functions which call their first argument in protected mode, such as {@code pcall},
+	 * which allows a {@link Continuation} to suspend in the function called. */
+	public interface PcallFunction {
+	}
+
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+
+	static {
+		Method o = null, n = null, u = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			o = Thread.class.getMethod("ofVirtual");
+			n = builder.getMethod("name", String.class);
+			u = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			o = null; // no virtual threads
+		}
+		ofVirtual = o;
+		builderName = n;
+		builderUnstarted = u;
+	}
+
+	/** Create a thread for a coroutine, virtual if possible and not disabled by {@link #coroutine_mode} */
+	static Thread newThread(Runnable runnable, String name) {
+		if (ofVirtual != null && coroutine_mode != COROUTINE_PLATFORM)
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderUnstarted.invoke(builder, runnable);
+			} catch (Exception e) {
+				// use a platform thread
+			}
+		return new Thread(runnable, name);
+	}
+
+	/** Threads which run resumes of stackless coroutines, idle threads end after a while */
+	private static final Executor workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 
+			60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = LuaThread.newThread(runnable, "Coroutine-worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 	
 	public static final int STATUS_INITIAL       = 0;
 	public static final int STATUS_SUSPENDED     = 1;
@@ -191,34 +271,74 @@ public class LuaThread extends LuaValue {
 			this.function = function;
 		}
 		
-		public synchronized void run() {
+		/** Heap frames of a coroutine which runs without a thread of its own */
+		private Continuation continuation;
+
+		/** True while a stackless coroutine waits in a yield from Java, keeping its worker */
+		private boolean parked;
+
+		/** Hand over between the resuming thread and the coroutine thread */
+		private final Lock lock = new ReentrantLock();
+		private final Condition transfer = lock.newCondition();
+		private boolean coroutine_turn;
+
+		public void run() {
+			lock.lock();
 			try {
 				Varargs a = this.args;
 				this.args = LuaValue.NONE;
-				this.result = function.invoke(a);
+				if (continuation == null) {
+					this.result = function.invoke(a);
+					this.status = LuaThread.STATUS_DEAD;
+				} else {
+					this.result = continuation.resume(a);
+					if (continuation.isdead())
+						this.status = LuaThread.STATUS_DEAD;
+				}
 			} catch (Throwable t) {
 				this.error = t.getMessage();
-			} finally {
 				this.status = LuaThread.STATUS_DEAD;
-				this.notify();
+			} finally {
+				this.coroutine_turn = false;
+				transfer.signalAll();
+				lock.unlock();
 			}
 		}
 
-		public synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
+		public Varargs lua_resume(LuaThread new_thread, Varargs args) {
 			LuaThread previous_thread = globals.running;
 			try {
 				globals.running = new_thread;
+				if (previous_thread != null)
+					previous_thread.state.status = STATUS_NORMAL;
+				if (this.status == STATUS_INITIAL && coroutine_mode == COROUTINE_STACKLESS &&
+						function instanceof LuaClosure && globals.debuglib == null)
+					continuation = new Continuation(this, (LuaClosure) function);
+				return resume_thread(args);
+			} finally {
+				globals.running = previous_thread;
+				if (previous_thread != null)
+					globals.running.state.status =STATUS_RUNNING;
+			}
+		}
+
+		private Varargs resume_thread(Varargs args) {
+			lock.lock();
+			try {
 				this.args = args;
-				if (this.status == STATUS_INITIAL) {
+				this.coroutine_turn = true;
+				if (continuation != null && !parked) {
+					this.status = STATUS_RUNNING; 
+					workers.execute(this);
+				} else if (this.status == STATUS_INITIAL) {
 					this.status = STATUS_RUNNING; 
-					new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					newThread(this, "Coroutine-"+(++coroutine_count)).start();
 				} else {
-					this.notify();
+					transfer.signalAll();
 				}
-				if (previous_thread != null)
-					previous_thread.state.status = STATUS_NORMAL;
 				this.status = STATUS_RUNNING;
-				this.wait();
+				while (this.coroutine_turn)
+					transfer.await();
 				return (this.error != null? 
 					LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)):
 					LuaValue.varargsOf(LuaValue.TRUE, this.result));
@@ -228,31 +348,35 @@ public class LuaThread extends LuaValue {
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
 				this.error = null;
-				globals.running = previous_thread;
-				if (previous_thread != null)
-					globals.running.state.status =STATUS_RUNNING;
+				lock.unlock();
 			}
 		}
 
-		public synchronized Varargs lua_yield(Varargs args) {
+		public Varargs lua_yield(Varargs args) {
+			// a continuation suspends at calls from lua, this is a call from Java which keeps the worker
+			lock.lock();
 			try {
+				this.parked = (continuation != null);
 				this.result = args;
 				this.status = STATUS_SUSPENDED;
-				this.notify();
+				this.coroutine_turn = false;
+				transfer.signalAll();
 				do {
-					this.wait(thread_orphan_check_interval);
+					transfer.await(thread_orphan_check_interval, TimeUnit.MILLISECONDS);
 					if (this.lua_thread.get() == null) {
 						this.status = STATUS_DEAD;
 						throw new OrphanedThread();
 					}
-				} while (this.status == STATUS_SUSPENDED);
+				} while (!this.coroutine_turn);
 				return this.args;
 			} catch (InterruptedException ie) {
 				this.status = STATUS_DEAD;
 				throw new OrphanedThread();
 			} finally {
+				this.parked = false;
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
+				lock.unlock();
 			}
 		}
 	}
@@ -71,6 +71,26 @@ public class LuaUserdata extends LuaValue {
 		return m_metatable;
 	}
 
+	/** 
+	 * Get the value which determines the methods of this userdata, such as its class.
+	 * <p>
+	 * Userdata with the same owner must return the same method for a name from {@link #getmethod(LuaValue)},
+	 * so the method can be cached per call site, see {@link InlineCache}.
+	 * @return the owner, or null if methods can't be cached
+	 */
+	public Object methodowner() {
+		return null;
+	}
+
+	/** 
+	 * Get the method for a name which is the same for all userdata with the same {@link #methodowner()}.
+	 * @param name the method name
+	 * @return the method, or null if the name must be looked up with {@link #get(LuaValue)}
+	 */
+	public LuaValue getmethod(LuaValue name) {
+		return null;
+	}
+
 	public LuaValue setmetatable(LuaValue metatable) {
 		this.m_metatable = metatable;
 		return this;
@@ -100,6 +100,8 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* inline caches of OP_SELF instructions, created when first executed */
+	InlineCache[] selfcaches;
 	private static final Upvaldesc[] NOUPVALUES = {};
 	private static final Prototype[] NOSUBPROTOS = {};
 
@@ -31,6 +31,7 @@ public final class UpValue {
 
 	LuaValue[] array; // initially the stack, becomes a holder 
 	int index;
+	UpValue next; // next open upvalue of the same call
 
 	/**
 	 *  Create an upvalue relative to a stack
@@ -42,6 +43,18 @@ public final class UpValue {
 		this.index = index;
 	}
 
+	/**
+	 *  Create an open upvalue relative to a stack, in front of a list of open upvalues
+	 * @param stack the stack
+	 * @param index the index on the stack for the upvalue
+	 * @param next the open upvalue to link to, or null
+	 */
+	public UpValue( LuaValue[] stack, int index, UpValue next) {
+		this.array = stack;
+		this.index = index;
+		this.next = next;
+	}
+
 	public String toString() {
 		return index + "/" + array.length + " " + array[index];
 	}
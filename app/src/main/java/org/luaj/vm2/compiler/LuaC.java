@@ -148,8 +148,9 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
 			LuaString c = (LuaString) strings.get(s);
 			if (c != null) 
 				return c;
-			strings.put(s, s);
-			return s;
+			c = LuaString.intern(s);
+			strings.put(c, c);
+			return c;
 		}
 	
 		public String pushfstring(String string) {
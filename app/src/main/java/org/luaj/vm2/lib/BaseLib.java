@@ -216,7 +216,7 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 	}
 		
 	// "pcall", // (f, arg1, ...) -> status, result1, ...
-	final class pcall extends VarArgFunction {
+	final class pcall extends VarArgFunction implements LuaThread.PcallFunction {
 		public Varargs invoke(Varargs args) {
 			LuaValue func = args.checkvalue(1);
 			if (globals != null && globals.debuglib != null)
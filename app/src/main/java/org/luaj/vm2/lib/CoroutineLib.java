@@ -32,10 +32,12 @@ import org.luaj.vm2.Varargs;
  * library. 
  * <p> 
  * The coroutine library in luaj has the same behavior as the
- * coroutine library in C, but is implemented using Java Threads to maintain 
- * the call state between invocations.  Therefore it can be yielded from anywhere, 
+ * coroutine library in C.  Coroutines of lua functions keep their call state on the heap
+ * and can yield from lua functions called by lua, see {@link LuaThread}.
+ * Other coroutines are implemented using Java Threads to maintain 
+ * the call state between invocations.  Therefore they can be yielded from anywhere, 
  * similar to the "Coco" yield-from-anywhere patch available for C-based lua.
- * However, coroutines that are yielded but never resumed to complete their execution
+ * However, coroutines on threads that are yielded but never resumed to complete their execution
  * may not be collected by the garbage collector. 
  * <p> 
  * Typically, this library is included as part of a call to either 
@@ -113,7 +115,7 @@ public class CoroutineLib extends TwoArgFunction {
 		}
 	}
 	
-	final class yieldFunction extends VarArgFunction {
+	final class yieldFunction extends VarArgFunction implements LuaThread.YieldFunction {
 		public Varargs invoke(Varargs args) {
 			return globals.yield( args );
 		}
@@ -29,6 +29,7 @@ import java.util.Map;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 
 /**
  * Helper class to coerce values from lua to Java within the luajava library. 
@@ -80,6 +81,52 @@ public class CoerceLuaToJava {
 	
 	static final Map COERCIONS = Collections.synchronizedMap(new HashMap());
 	
+	/**
+	 * Get a key for the argument shape of a call, which determines the score of the arguments for every coercion.
+	 * @param args the arguments
+	 * @return the key, or null if a score depends on more than the shape, such as the contents of a table
+	 */
+	static Object[] shape(Varargs args) {
+		Object[] keys = new Object[args.narg()];
+		for ( int i=0; i<keys.length; i++ )
+			if ( (keys[i] = shape(args.arg(i+1))) == null )
+				return null;
+		return keys;
+	}
+
+	/** Get the key for the shape of a value, see {@link #shape(Varargs)} */
+	static Object shape(LuaValue value) {
+		switch ( value.type() ) {
+		case LuaValue.TNIL:
+		case LuaValue.TBOOLEAN:
+			return Integer.valueOf(value.type());
+		case LuaValue.TNUMBER:
+			return Integer.valueOf(numberShape(value));
+		case LuaValue.TSTRING: {
+			LuaValue n = value.tonumber();
+			return Integer.valueOf(0x20 | (value.checkstring().isValidUtf8()? 0x40: 0) | (n.isnil()? 0: numberShape(n)));
+		}
+		case LuaValue.TTABLE:
+			return null;
+		case LuaValue.TUSERDATA: {
+			Object o = value.touserdata();
+			return o == null || o instanceof LuaValue? null: o.getClass();
+		}
+		default:
+			return value.getClass();
+		}
+	}
+
+	/** The ranges which decide the score of a number for each numeric type */
+	private static int numberShape(LuaValue value) {
+		if ( value.isint() ) {
+			int i = value.toint();
+			return 0x11 | ((i==(byte)i)? 0x2: 0) | ((i==(char)i)? 0x4: 0) | ((i==(short)i)? 0x8: 0);
+		}
+		double d = value.todouble();
+		return 0x10 | ((d==(long)d)? 0x2: 0) | ((d==(float)d)? 0x4: 0);
+	}
+
 	static final class BoolCoercion implements Coercion {
 		public String toString() {
 			return "BoolCoercion()";
@@ -65,6 +65,20 @@ class JavaInstance extends LuaUserdata {
 		return super.get(key);
 	}
 
+	public Object methodowner() {
+		if ( jclass == null )
+			jclass = JavaClass.forClass(m_instance.getClass());
+		return jclass;
+	}
+
+	public LuaValue getmethod(LuaValue name) {
+		if ( jclass == null )
+			jclass = JavaClass.forClass(m_instance.getClass());
+		if ( jclass.getField(name) != null )
+			return null;
+		return jclass.getMethod(name);
+	}
+
 	public void set(LuaValue key, LuaValue value) {
 		if ( jclass == null )
 			jclass = JavaClass.forClass(m_instance.getClass());
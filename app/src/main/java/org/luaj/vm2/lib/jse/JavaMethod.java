@@ -23,8 +23,10 @@ package org.luaj.vm2.lib.jse;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.luaj.vm2.LuaError;
@@ -105,6 +107,7 @@ class JavaMethod extends JavaMember {
 	 * LuaValue that represents an overloaded Java method.
 	 * <p>
 	 * On invocation, will pick the best method from the list, and invoke it.
+	 * The best method is cached per argument shape, see {@link CoerceLuaToJava#shape(Varargs)}.
 	 * <p>
 	 * This class is not used directly.  
 	 * It is returned by calls to calls to {@link JavaInstance#get(LuaValue key)} 
@@ -114,6 +117,12 @@ class JavaMethod extends JavaMember {
 
 		final JavaMethod[] methods;
 		
+		/** Best method by argument shape */
+		final Map shapes = Collections.synchronizedMap(new HashMap());
+		
+		/** The most recent argument shape and its best method, checked without allocating a key */
+		private Shape last;
+		
 		Overload(JavaMethod[] methods) {
 			this.methods = methods;
 		}
@@ -139,6 +148,21 @@ class JavaMethod extends JavaMember {
 		}
 
 		private LuaValue invokeBestMethod(Object instance, Varargs args) {
+			Shape s = last;
+			if ( s != null && s.matches(args) )
+				return s.method.invokeMethod(instance, args);
+			Object[] keys = CoerceLuaToJava.shape(args);
+			if ( keys == null )
+				return bestMethod(args).invokeMethod(instance, args);
+			List key = Arrays.asList(keys);
+			JavaMethod m = (JavaMethod) shapes.get(key);
+			if ( m == null )
+				shapes.put(key, m = bestMethod(args));
+			last = new Shape(keys, m);
+			return m.invokeMethod(instance, args);
+		}
+
+		private JavaMethod bestMethod(Varargs args) {
 			JavaMethod best = null;
 			int score = CoerceLuaToJava.SCORE_UNCOERCIBLE;
 			for ( int i=0; i<methods.length; i++ ) {
@@ -154,9 +178,27 @@ class JavaMethod extends JavaMember {
 			// any match? 
 			if ( best == null )
 				LuaValue.error("no coercible public method");
-			
-			// invoke it
-			return best.invokeMethod(instance, args);
+			return best;
+		}
+	}
+
+	/** Argument shape of a call and the best method for it */
+	static final class Shape {
+		final Object[] keys;
+		final JavaMethod method;
+
+		Shape(Object[] keys, JavaMethod method) {
+			this.keys = keys;
+			this.method = method;
+		}
+
+		boolean matches(Varargs args) {
+			if ( args.narg() != keys.length )
+				return false;
+			for ( int i=0; i<keys.length; i++ )
+				if ( !keys[i].equals(CoerceLuaToJava.shape(args.arg(i+1))) )
+					return false;
+			return true;
 		}
 	}
 
@@ -0,0 +1,523 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+
+/**
+ * Ahead-of-time translator of lua {@link Prototype}s into Java source.
+ * <p>
+ * Each prototype becomes a subclass of {@link org.luaj.vm2.CompiledClosure}
+ * whose {@code execute} method contains the instructions of the prototype,
+ * with the operands decoded and the jumps resolved at translation time.
+ * Basic blocks are dispatched with a {@code switch}, so the result can be
+ * compiled into an application by a regular Java compiler,
+ * without generating bytecode at run time.
+ * <p>
+ * Run as a program to translate all scripts in a directory:
+ * <pre> {@code
+ * java org.luaj.vm2.luajc.JavaGen <script directory> <output directory> <package> [chunkname]
+ * }</pre>
+ * This writes one class per script and a {@code LuaScripts} class
+ * which creates the main chunk for the SHA-1 of a script text.
+ * Scripts which cannot be translated are skipped and run interpreted.
+ */
+public class JavaGen {
+	private final String classname;
+	private final String chunkname;
+	private final StringBuilder sb = new StringBuilder();
+	private int selfsites;
+
+	private JavaGen(String classname, String chunkname) {
+		this.classname = classname;
+		this.chunkname = chunkname;
+	}
+
+	/** Translate a main chunk into the source of a class with the given name */
+	public static String generate(Prototype p, String packagename, String classname, String chunkname, String comment) {
+		JavaGen gen = new JavaGen(classname, chunkname);
+		gen.sb.append("// Generated by ").append(JavaGen.class.getName())
+			.append(" from ").append(comment).append(", do not edit\n");
+		gen.sb.append("package ").append(packagename).append(";\n\n");
+		gen.sb.append("import org.luaj.vm2.*;\n\n");
+		gen.genClass(p, classname, "", 0, true);
+		return gen.sb.toString();
+	}
+
+	private void genClass(Prototype p, String name, String path, int depth, boolean main) {
+		String in = indent(depth);
+		sb.append(in).append(main? "final class ": "static final class ").append(name)
+			.append(" extends CompiledClosure {\n");
+
+		// Constants and line information
+		sb.append(in).append("\tprivate static final LuaValue[] k = {");
+		for (int i = 0; i < p.k.length; i++)
+			sb.append(i == 0? "": ",").append("\n").append(in).append("\t\t").append(constant(p.k[i]));
+		sb.append("};\n");
+		sb.append(in).append("\tprivate static final int[] lines = ")
+			.append(p.lineinfo == null? "null": intArray(p.lineinfo)).append(";\n");
+		int caches = sb.length();
+		sb.append("\n");
+
+		sb.append(in).append("\t").append(name).append("(LuaValue env) {\n");
+		sb.append(in).append("\t\tsuper(\"").append(escape(chunkname)).append("\", ").append(p.linedefined)
+			.append(", ").append(p.upvalues.length).append(", ").append(p.numparams)
+			.append(", ").append(p.is_vararg != 0).append(", ").append(p.maxstacksize)
+			.append(", lines, env);\n");
+		sb.append(in).append("\t}\n\n");
+
+		selfsites = 0;
+		genExecute(p, path, depth + 1);
+		if (selfsites > 0)
+			sb.insert(caches, in + "\tprivate static final InlineCache[] ic = new InlineCache[" + selfsites + "];\n");
+
+		for (int i = 0; i < p.p.length; i++) {
+			sb.append("\n");
+			genClass(p.p[i], "F" + path + i, path + i + "_", depth + 1, false);
+		}
+		sb.append(in).append("}\n");
+	}
+
+	private void genExecute(Prototype p, String path, int depth) {
+		String in = indent(depth);
+		int[] code = p.code;
+		boolean[] leader = leaders(code);
+		boolean[] data = new boolean[code.length];
+
+		sb.append(in).append("protected Varargs execute(LuaValue[] stack, Varargs varargs) {\n");
+		sb.append(in).append("\tint pc = 0, top = 0, block = 0;\n");
+		sb.append(in).append("\tVarargs v = NONE;\n");
+		sb.append(in).append("\tUpValue openups = null;\n");
+		sb.append(in).append("\ttry {\n");
+		sb.append(in).append("\t\tfor (;;) {\n");
+		sb.append(in).append("\t\t\tswitch (block) {\n");
+		for (int pc = 0; pc < code.length; pc++) {
+			if (data[pc])
+				continue;
+			if (leader[pc])
+				sb.append(in).append("\t\t\tcase ").append(pc).append(":\n");
+			String stmt = instruction(p, path, code, pc, data);
+			for (String line : stmt.split("\n"))
+				sb.append(in).append("\t\t\t\t").append(line).append("\n");
+		}
+		sb.append(in).append("\t\t\tdefault:\n");
+		sb.append(in).append("\t\t\t\tthrow new IllegalStateException(\"block \" + block);\n");
+		sb.append(in).append("\t\t\t}\n");
+		sb.append(in).append("\t\t}\n");
+		sb.append(in).append("\t} catch (Exception e) {\n");
+		sb.append(in).append("\t\tthrow onError(e, pc);\n");
+		sb.append(in).append("\t} finally {\n");
+		sb.append(in).append("\t\tcloseups(openups, 0);\n");
+		sb.append(in).append("\t}\n");
+		sb.append(in).append("}\n");
+	}
+
+	/** Find the instructions which can be jumped to */
+	private static boolean[] leaders(int[] code) {
+		boolean[] leader = new boolean[code.length + 2];
+		leader[0] = true;
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			switch (Lua.GET_OPCODE(i)) {
+			case Lua.OP_LOADBOOL:
+				if (Lua.GETARG_C(i) != 0)
+					leader[pc + 2] = true;
+				break;
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+			case Lua.OP_TEST:
+			case Lua.OP_TESTSET:
+				leader[pc + 1] = true;
+				leader[pc + 2] = true;
+				break;
+			case Lua.OP_JMP:
+			case Lua.OP_FORLOOP:
+			case Lua.OP_FORPREP:
+			case Lua.OP_TFORLOOP:
+				leader[pc + 1 + Lua.GETARG_sBx(i)] = true;
+				leader[pc + 1] = true;
+				break;
+			case Lua.OP_RETURN:
+			case Lua.OP_TAILCALL:
+				leader[pc + 1] = true;
+				break;
+			case Lua.OP_SETLIST:
+				if (Lua.GETARG_C(i) == 0)
+					pc++;
+				break;
+			}
+		}
+		return Arrays.copyOf(leader, code.length);
+	}
+
+	private String instruction(Prototype p, String path, int[] code, int pc, boolean[] data) {
+		int i = code[pc];
+		int a = Lua.GETARG_A(i);
+		int b = Lua.GETARG_B(i);
+		int c = Lua.GETARG_C(i);
+		int bx = Lua.GETARG_Bx(i);
+		int sbx = Lua.GETARG_sBx(i);
+		String at = "pc = " + pc + "; ";
+		switch (Lua.GET_OPCODE(i)) {
+		case Lua.OP_MOVE:
+			return r(a) + " = " + r(b) + ";";
+		case Lua.OP_LOADK:
+			return r(a) + " = k[" + bx + "];";
+		case Lua.OP_LOADBOOL:
+			return r(a) + " = LuaValue." + (b != 0? "TRUE": "FALSE") + ";"
+				+ (c != 0? "\nblock = " + (pc + 2) + "; continue;": "");
+		case Lua.OP_LOADNIL: {
+			StringBuilder s = new StringBuilder();
+			for (int j = 0; j <= b; j++)
+				s.append(j == 0? "": " ").append(r(a + j)).append(" = LuaValue.NIL;");
+			return s.toString();
+		}
+		case Lua.OP_GETUPVAL:
+			return at + r(a) + " = upValues[" + b + "].getValue();";
+		case Lua.OP_GETTABUP:
+			return at + r(a) + " = upValues[" + b + "].getValue().get(" + rk(c) + ");";
+		case Lua.OP_GETTABLE:
+			return at + r(a) + " = " + r(b) + ".get(" + rk(c) + ");";
+		case Lua.OP_SETTABUP:
+			return at + "upValues[" + a + "].getValue().set(" + rk(b) + ", " + rk(c) + ");";
+		case Lua.OP_SETUPVAL:
+			return at + "upValues[" + b + "].setValue(" + r(a) + ");";
+		case Lua.OP_SETTABLE:
+			return at + r(a) + ".set(" + rk(b) + ", " + rk(c) + ");";
+		case Lua.OP_NEWTABLE:
+			return r(a) + " = new LuaTable(" + b + ", " + c + ");";
+		case Lua.OP_SELF:
+			if (Lua.ISK(c))
+				return at + "{ LuaValue o = " + r(b) + "; " + r(a + 1) + " = o; " + r(a) + " = self(ic, " + selfsites++ + ", o, " + rk(c) + "); }";
+			return at + "{ LuaValue o = " + r(b) + "; " + r(a + 1) + " = o; " + r(a) + " = o.get(" + rk(c) + "); }";
+		case Lua.OP_ADD:
+			return at + r(a) + " = " + rk(b) + ".add(" + rk(c) + ");";
+		case Lua.OP_SUB:
+			return at + r(a) + " = " + rk(b) + ".sub(" + rk(c) + ");";
+		case Lua.OP_MUL:
+			return at + r(a) + " = " + rk(b) + ".mul(" + rk(c) + ");";
+		case Lua.OP_DIV:
+			return at + r(a) + " = " + rk(b) + ".div(" + rk(c) + ");";
+		case Lua.OP_MOD:
+			return at + r(a) + " = " + rk(b) + ".mod(" + rk(c) + ");";
+		case Lua.OP_POW:
+			return at + r(a) + " = " + rk(b) + ".pow(" + rk(c) + ");";
+		case Lua.OP_UNM:
+			return at + r(a) + " = " + r(b) + ".neg();";
+		case Lua.OP_NOT:
+			return at + r(a) + " = " + r(b) + ".not();";
+		case Lua.OP_LEN:
+			return at + r(a) + " = " + r(b) + ".len();";
+		case Lua.OP_CONCAT:
+			if (c > b + 1) {
+				StringBuilder s = new StringBuilder(at + "{ Buffer sb = " + r(c) + ".buffer();");
+				for (int j = c - 1; j >= b; j--)
+					s.append(" sb = ").append(r(j)).append(".concat(sb);");
+				return s.append(" ").append(r(a)).append(" = sb.value(); }").toString();
+			} else
+				return at + r(a) + " = " + r(c - 1) + ".concat(" + r(c) + ");";
+		case Lua.OP_JMP:
+			return (a > 0? "openups = closeups(openups, " + (a - 1) + ");\n": "")
+				+ "block = " + (pc + 1 + sbx) + "; continue;";
+		case Lua.OP_EQ:
+			return at + "if (" + (a != 0? "!": "") + rk(b) + ".eq_b(" + rk(c) + ")) { block = " + (pc + 2) + "; continue; }";
+		case Lua.OP_LT:
+			return at + "if (" + (a != 0? "!": "") + rk(b) + ".lt_b(" + rk(c) + ")) { block = " + (pc + 2) + "; continue; }";
+		case Lua.OP_LE:
+			return at + "if (" + (a != 0? "!": "") + rk(b) + ".lteq_b(" + rk(c) + ")) { block = " + (pc + 2) + "; continue; }";
+		case Lua.OP_TEST:
+			return "if (" + (c != 0? "!": "") + r(a) + ".toboolean()) { block = " + (pc + 2) + "; continue; }";
+		case Lua.OP_TESTSET:
+			return "if (" + (c != 0? "!": "") + r(b) + ".toboolean()) { block = " + (pc + 2) + "; continue; }\n"
+				+ r(a) + " = " + r(b) + ";";
+		case Lua.OP_CALL:
+			return at + call(a, b, c);
+		case Lua.OP_TAILCALL:
+			switch (b) {
+			case 1: return at + "return new TailcallVarargs(" + r(a) + ", NONE);";
+			case 2: return at + "return new TailcallVarargs(" + r(a) + ", " + r(a + 1) + ");";
+			case 3: return at + "return new TailcallVarargs(" + r(a) + ", varargsOf(" + r(a + 1) + ", " + r(a + 2) + "));";
+			case 4: return at + "return new TailcallVarargs(" + r(a) + ", varargsOf(" + r(a + 1) + ", " + r(a + 2) + ", " + r(a + 3) + "));";
+			default: return at + "return new TailcallVarargs(" + r(a) + ", " + args(a + 1, b) + ");";
+			}
+		case Lua.OP_RETURN:
+			switch (b) {
+			case 0: return "return varargsOf(stack, " + a + ", top - v.narg() - " + a + ", v);";
+			case 1: return "return NONE;";
+			case 2: return "return " + r(a) + ";";
+			default: return "return varargsOf(stack, " + a + ", " + (b - 1) + ");";
+			}
+		case Lua.OP_FORLOOP:
+			return at + "{ LuaValue limit = " + r(a + 1) + ", step = " + r(a + 2) + ", idx = step.add(" + r(a) + ");\n"
+				+ "  if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {\n"
+				+ "    " + r(a) + " = idx; " + r(a + 3) + " = idx; block = " + (pc + 1 + sbx) + "; continue; } }";
+		case Lua.OP_FORPREP:
+			return at + "{ LuaValue init = " + r(a) + ".checknumber(\"'for' initial value must be a number\");\n"
+				+ "  LuaValue limit = " + r(a + 1) + ".checknumber(\"'for' limit must be a number\");\n"
+				+ "  LuaValue step = " + r(a + 2) + ".checknumber(\"'for' step must be a number\");\n"
+				+ "  " + r(a) + " = init.sub(step); " + r(a + 1) + " = limit; " + r(a + 2) + " = step; }\n"
+				+ "block = " + (pc + 1 + sbx) + "; continue;";
+		case Lua.OP_TFORCALL: {
+			StringBuilder s = new StringBuilder(at + "v = " + r(a) + ".invoke(varargsOf(" + r(a + 1) + ", " + r(a + 2) + "));");
+			for (int j = c - 1; j >= 0; j--)
+				s.append(" ").append(r(a + 3 + j)).append(" = v.arg(").append(j + 1).append(");");
+			return s.append(" v = NONE;").toString();
+		}
+		case Lua.OP_TFORLOOP:
+			return "if (!" + r(a + 1) + ".isnil()) { " + r(a) + " = " + r(a + 1) + "; block = " + (pc + 1 + sbx) + "; continue; }";
+		case Lua.OP_SETLIST: {
+			if (c == 0) {
+				c = code[pc + 1];
+				data[pc + 1] = true;
+			}
+			int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
+			if (b == 0)
+				return at + "{ LuaValue o = " + r(a) + "; int n = top - " + (a + 1) + "; int m = n - v.narg(); int j = 1;\n"
+					+ "  for (; j <= m; j++) o.set(" + offset + " + j, stack[" + a + " + j]);\n"
+					+ "  for (; j <= n; j++) o.set(" + offset + " + j, v.arg(j - m)); }";
+			StringBuilder s = new StringBuilder(at + "{ LuaValue o = " + r(a) + "; o.presize(" + (offset + b) + ");");
+			for (int j = 1; j <= b; j++)
+				s.append(" o.set(").append(offset + j).append(", ").append(r(a + j)).append(");");
+			return s.append(" }").toString();
+		}
+		case Lua.OP_CLOSURE: {
+			Prototype np = p.p[bx];
+			StringBuilder s = new StringBuilder("{ CompiledClosure ncl = new F" + path + bx + "(globals);");
+			for (int j = 0; j < np.upvalues.length; j++)
+				if (np.upvalues[j].instack)
+					s.append("\n  { UpValue u = findupval(openups, ").append(np.upvalues[j].idx).append(");")
+						.append(" if (u == null) openups = u = new UpValue(stack, ").append(np.upvalues[j].idx).append(", openups);")
+						.append(" ncl.upValues[").append(j).append("] = u; }");
+				else
+					s.append("\n  ncl.upValues[").append(j).append("] = upValues[").append(np.upvalues[j].idx).append("];");
+			return s.append("\n  ").append(r(a)).append(" = ncl; }").toString();
+		}
+		case Lua.OP_VARARG:
+			if (b == 0)
+				return "top = " + a + " + varargs.narg(); v = varargs;";
+			else {
+				StringBuilder s = new StringBuilder();
+				for (int j = 1; j < b; j++)
+					s.append(j == 1? "": " ").append(r(a + j - 1)).append(" = varargs.arg(").append(j).append(");");
+				return s.toString();
+			}
+		default:
+			throw new IllegalArgumentException("Unsupported opcode " + Lua.GET_OPCODE(i) + " at " + pc);
+		}
+	}
+
+	private static String call(int a, int b, int c) {
+		String f = r(a);
+		if (b >= 1 && b <= 4 && c >= 1 && c <= 2) {
+			StringBuilder s = new StringBuilder(c == 2? f + " = ": "");
+			s.append(f).append(".call(");
+			for (int j = 1; j < b; j++)
+				s.append(j == 1? "": ", ").append(r(a + j));
+			return s.append(");").toString();
+		}
+		if (c == 0 && (b == 1 || b == 2))
+			return "v = " + f + ".invoke(" + (b == 1? "NONE": r(a + 1)) + "); top = " + a + " + v.narg();";
+		String call = "v = " + f + ".invoke(" + args(a + 1, b) + ");";
+		if (c > 0)
+			return call + " copyto(v, stack, " + a + ", " + (c - 1) + "); v = NONE;";
+		else
+			return call + " top = " + a + " + v.narg(); v = dealias(v);";
+	}
+
+	/** Arguments from a register, either a fixed count or up to the previous top */
+	private static String args(int from, int b) {
+		if (b > 0)
+			return "varargsOf(stack, " + from + ", " + (b - 1) + ")";
+		else
+			return "varargsOf(stack, " + from + ", top - v.narg() - " + from + ", v)";
+	}
+
+	private static String r(int r) {
+		return "stack[" + r + "]";
+	}
+
+	private static String rk(int x) {
+		return (Lua.ISK(x)? "k[" + Lua.INDEXK(x) + "]": r(x));
+	}
+
+	private static String constant(LuaValue k) {
+		switch (k.type()) {
+		case LuaValue.TNIL:
+			return "LuaValue.NIL";
+		case LuaValue.TBOOLEAN:
+			return k.toboolean()? "LuaValue.TRUE": "LuaValue.FALSE";
+		case LuaValue.TNUMBER:
+			if (k.isinttype())
+				return "LuaValue.valueOf(" + k.toint() + ")";
+			double d = k.todouble();
+			if (Double.isNaN(d))
+				return "LuaValue.valueOf(Double.NaN)";
+			if (Double.isInfinite(d))
+				return "LuaValue.valueOf(Double." + (d > 0? "POSITIVE": "NEGATIVE") + "_INFINITY)";
+			return "LuaValue.valueOf(" + Double.toString(d) + ")";
+		case LuaValue.TSTRING: {
+			LuaString s = k.checkstring();
+			boolean ascii = true;
+			for (int i = 0; i < s.m_length; i++)
+				if (s.m_bytes[s.m_offset + i] < 0x20 || s.m_bytes[s.m_offset + i] > 0x7e)
+					ascii = false;
+			if (ascii)
+				return "LuaString.intern(LuaValue.valueOf(\"" + escape(s.tojstring()) + "\"))";
+			StringBuilder b = new StringBuilder("LuaString.intern(LuaString.valueOf(new byte[]{");
+			for (int i = 0; i < s.m_length; i++)
+				b.append(i == 0? "": ", ").append(s.m_bytes[s.m_offset + i]);
+			return b.append("}))").toString();
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported constant " + k.typename());
+		}
+	}
+
+	private static String intArray(int[] values) {
+		StringBuilder s = new StringBuilder("{");
+		for (int i = 0; i < values.length; i++)
+			s.append(i == 0? "": ", ").append(values[i]);
+		return s.append("}").toString();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static String indent(int depth) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			s.append('\t');
+		return s.toString();
+	}
+
+	/** Strip comment lines and indentation, the same as the application does before compiling */
+	private static String normalize(String script) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : script.split("\\r?\\n")) {
+			if (!line.startsWith("--"))
+				sb.append(line.trim());
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	private static String sha1(String text) throws Exception {
+		byte[] bytes = MessageDigest.getInstance("SHA1").digest(text.getBytes("UTF-8"));
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: JavaGen <script directory> <output directory> <package> [chunkname]");
+			System.exit(1);
+		}
+		File scripts = new File(args[0]);
+		String packagename = args[2];
+		String chunkname = (args.length > 3? args[3]: "script");
+		File out = new File(args[1], packagename.replace('.', File.separatorChar));
+		out.mkdirs();
+
+		File[] files = scripts.listFiles();
+		if (files == null)
+			throw new IOException(scripts + " not found");
+		Arrays.sort(files);
+
+		List<String> hashes = new ArrayList<String>();
+		List<String> classes = new ArrayList<String>();
+		for (File file : files) {
+			if (!file.getName().endsWith(".lua"))
+				continue;
+			String script = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+			String hash = sha1(script);
+			if (hashes.contains(hash))
+				continue;
+			String name = "Lua_" + file.getName().substring(0, file.getName().length() - 4).replaceAll("[^A-Za-z0-9_]", "_");
+			try {
+				Prototype p = LuaC.instance.compile(new ByteArrayInputStream(normalize(script).getBytes("UTF-8")), chunkname);
+				String source = generate(p, packagename, name, chunkname, file.getName());
+				write(new File(out, name + ".java"), source);
+				hashes.add(hash);
+				classes.add(name);
+			} catch (Exception ex) {
+				System.err.println("Skipping " + file.getName() + ": " + ex);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("// Generated by ").append(JavaGen.class.getName()).append(", do not edit\n");
+		sb.append("package ").append(packagename).append(";\n\n");
+		sb.append("import org.luaj.vm2.LuaFunction;\n");
+		sb.append("import org.luaj.vm2.LuaValue;\n\n");
+		sb.append("public final class LuaScripts {\n");
+		sb.append("\t/** Returns the translated main chunk of a script by the SHA-1 of its text, or null */\n");
+		sb.append("\tpublic static LuaFunction load(String hash, LuaValue env) {\n");
+		sb.append("\t\tswitch (hash) {\n");
+		for (int i = 0; i < hashes.size(); i++)
+			sb.append("\t\t\tcase \"").append(hashes.get(i)).append("\": return new ").append(classes.get(i)).append("(env);\n");
+		sb.append("\t\t\tdefault: return null;\n");
+		sb.append("\t\t}\n");
+		sb.append("\t}\n\n");
+		sb.append("\tpublic static boolean contains(String hash) {\n");
+		sb.append("\t\tswitch (hash) {\n");
+		for (int i = 0; i < hashes.size(); i++)
+			sb.append("\t\t\tcase \"").append(hashes.get(i)).append("\":\n");
+		sb.append("\t\t\t\treturn true;\n");
+		sb.append("\t\t\tdefault:\n");
+		sb.append("\t\t\t\treturn false;\n");
+		sb.append("\t\t}\n");
+		sb.append("\t}\n");
+		sb.append("}\n");
+		write(new File(out, "LuaScripts.java"), sb.toString());
+
+		System.out.println("Translated " + classes.size() + " scripts into " + out);
+	}
+
+	private static void write(File file, String source) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(source);
+		} finally {
+			writer.close();
+		}
+	}
+}
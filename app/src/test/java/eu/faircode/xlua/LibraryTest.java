@@ -0,0 +1,191 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaThread;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class LibraryTest {
+    // Runtimes per hook, as if every hook ran on this many threads
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 3;
+
+    private static final Context context = new TestHooks.TestContext();
+    private static final Map<String, String> settings = new HashMap<>();
+
+    private interface GlobalsFactory {
+        Globals create(XHook hook);
+    }
+
+    @Test
+    public void testSharedLibraryIsReadOnly() throws Exception {
+        Globals globals = XLua.getGlobals(context, TestHooks.readHooks().get(0), settings);
+        for (String script : new String[]{
+                "string.upper = nil",
+                "rawset(math, 'pi', 3)",
+                "table.sort(string)",
+                "setmetatable(bit32, {})",
+                "x = 1"})
+            try {
+                globals.load(script).call();
+                fail(script);
+            } catch (LuaError ignored) {
+            }
+        assertEquals("ABC", globals.load("return string.upper('abc')").call().tojstring());
+    }
+
+    @Test
+    public void testStatefulLibrariesArePerRuntime() throws Exception {
+        XHook hook = TestHooks.readHooks().get(0);
+        Globals one = XLua.getGlobals(context, hook, settings);
+        Globals two = XLua.getGlobals(context, hook, settings);
+
+        // Pure libraries are shared
+        assertSame(one.get("string"), two.get("string"));
+        assertSame(one.get("string"), one.load("return require('string')").call());
+
+        // Chunks load into their own globals
+        assertSame(one, one.load("return load('return _G')()").call());
+        assertSame(two, two.load("return load('return _G')()").call());
+        assertNotSame(one.get("xpcall"), two.get("xpcall"));
+        assertNotSame(one.get("package"), two.get("package"));
+
+        // Modules are loaded per runtime
+        one.load("package.preload.module = function() return 'one' end").call();
+        assertEquals("one", one.load("return require('module')").call().tojstring());
+        try {
+            two.load("return require('module')").call();
+            fail("module");
+        } catch (LuaError ignored) {
+        }
+
+        // Error handlers belong to the runtime
+        assertEquals("one", one.load(
+                "return select(2, xpcall(function() error('x') end, function() return 'one' end))").call().tojstring());
+        assertEquals("two", two.load(
+                "return select(2, xpcall(function() error('x') end, function() return 'two' end))").call().tojstring());
+    }
+
+    @Test
+    public void testCoroutinesAreStackless() throws Exception {
+        Globals globals = XLua.getGlobals(context, TestHooks.readHooks().get(0), settings);
+        assertEquals(LuaThread.COROUTINE_STACKLESS, LuaThread.coroutine_mode);
+
+        int count = LuaThread.coroutine_count;
+        assertEquals(3, globals.load(
+                "local co = coroutine.wrap(function() coroutine.yield(1) return 2 end)\n" +
+                        "return co() + co()").call().toint());
+        assertEquals(count, LuaThread.coroutine_count);
+    }
+
+    // Runtimes of every builtin hook with the shared library against a standard library per runtime
+    @Test
+    public void testHeapAndStartup() throws Exception {
+        com.sun.management.ThreadMXBean bean = getThreadBean();
+        List<XHook> hooks = TestHooks.readHooks();
+        List<XLua.HookTarget> targets = TestHooks.getTargets(hooks);
+
+        GlobalsFactory shared = new GlobalsFactory() {
+            @Override
+            public Globals create(XHook hook) {
+                return XLua.getGlobals(context, hook, settings);
+            }
+        };
+        GlobalsFactory standard = new GlobalsFactory() {
+            @Override
+            public Globals create(XHook hook) {
+                return JsePlatform.standardGlobals();
+            }
+        };
+
+        long[] sharedResult = null;
+        long[] standardResult = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            sharedResult = measure(bean, targets, shared);
+            standardResult = measure(bean, targets, standard);
+        }
+
+        System.out.println("Runtimes=" + targets.size() * THREADS + " hooks=" + targets.size());
+        System.out.println("Shared library: allocated=" + sharedResult[0] / 1024 + " KiB" +
+                " retained=" + sharedResult[1] / 1024 + " KiB" +
+                " startup=" + sharedResult[2] / 1000000 + " ms");
+        System.out.println("Standard library per runtime: allocated=" + standardResult[0] / 1024 + " KiB" +
+                " retained=" + standardResult[1] / 1024 + " KiB" +
+                " startup=" + standardResult[2] / 1000000 + " ms");
+
+        assertTrue("shared " + sharedResult[0] + " standard " + standardResult[0],
+                sharedResult[0] < standardResult[0]);
+    }
+
+    // Returns allocated bytes, retained bytes and elapsed nanoseconds
+    private static long[] measure(
+            com.sun.management.ThreadMXBean bean, List<XLua.HookTarget> targets, GlobalsFactory factory) {
+        long id = Thread.currentThread().getId();
+        List<XLua.LuaRuntime> runtimes = new ArrayList<>();
+
+        long heap = usedHeap();
+        long allocated = bean.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++)
+            for (XLua.HookTarget target : targets)
+                runtimes.add(new XLua.LuaRuntime(target, factory.create(target.hook)));
+        long elapsed = System.nanoTime() - start;
+        allocated = bean.getThreadAllocatedBytes(id) - allocated;
+        long retained = usedHeap() - heap;
+
+        assertEquals(targets.size() * THREADS, runtimes.size());
+        return new long[]{allocated, retained, elapsed};
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+}
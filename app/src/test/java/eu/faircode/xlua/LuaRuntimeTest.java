@@ -0,0 +1,245 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.CoerceJavaToLua;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class LuaRuntimeTest {
+    private static final String SCRIPT =
+            "function before(hook, param)\n" +
+                    "  local value = param:getArgument(0)\n" +
+                    "  param:setArgument(0, string.upper(value))\n" +
+                    "  return false, value\n" +
+                    "end\n";
+
+    private static final int WARMUP = 10;
+    private static final int ITERATIONS = 20000;
+
+    // Invocations per measurement, divided over the threads
+    private static final int CALLS = 64 * 4000;
+    private static final int ROUNDS = 3;
+
+    // Bytes per invocation the bound path may add to the interpreter's own allocations
+    private static final long ALLOCATION_SLACK = 8;
+
+    private static final Context context = new TestHooks.TestContext();
+    private static final Map<String, String> settings = new HashMap<>();
+
+    @SuppressWarnings("unused")
+    public static class Target {
+        public String query(String value) {
+            return value;
+        }
+    }
+
+    @Test
+    public void testBoundInvocationAllocatesNothing() throws Throwable {
+        final com.sun.management.ThreadMXBean bean = getThreadBean();
+
+        XLua.HookTarget target = getTarget();
+        final Method member = Target.class.getMethod("query", String.class);
+        final XLua.LuaRuntime runtime = newRuntime(target, member);
+        final LuaValue func = runtime.getFunction("before");
+        final XC_MethodHook.MethodHookParam param = newParam(member, "value");
+
+        Runnable bound = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++)
+                    runtime.invoke(func, param);
+            }
+        };
+
+        // The interpreter allocates frames by itself, binding should add nothing to that
+        Runnable unbound = new Runnable() {
+            @Override
+            public void run() {
+                runtime.param.bind(param);
+                try {
+                    for (int i = 0; i < ITERATIONS; i++)
+                        func.invoke(runtime.args);
+                } finally {
+                    runtime.param.bind(null);
+                }
+            }
+        };
+
+        // What binding replaced: a parameter and arguments per invocation
+        final LuaValue luaHook = CoerceJavaToLua.coerce(target.hook);
+        Runnable perCall = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    XParam xparam = new XParam(null, member, settings);
+                    xparam.bind(param);
+                    func.invoke(LuaValue.varargsOf(luaHook, CoerceJavaToLua.coerce(xparam)));
+                }
+            }
+        };
+
+        for (int i = 0; i < WARMUP; i++) {
+            bound.run();
+            unbound.run();
+            perCall.run();
+        }
+
+        param.args[0] = "value";
+        Varargs result = runtime.invoke(func, param);
+        assertEquals(false, result.arg1().checkboolean());
+        assertEquals("value", result.checkjstring(2));
+        assertEquals("VALUE", param.args[0]);
+
+        long base = allocated(bean, unbound);
+        long first = allocated(bean, bound);
+        long second = allocated(bean, bound);
+        long before = allocated(bean, perCall);
+
+        assertTrue("bound " + first + " unbound " + base, first <= base + ALLOCATION_SLACK);
+        assertTrue("bound " + second + " unbound " + base, second <= base + ALLOCATION_SLACK);
+        assertTrue("per call " + before + " bound " + second, before > second + ALLOCATION_SLACK);
+    }
+
+    // Invokes a hook the way Xposed does, with a runtime per thread and the shared library
+    @Test
+    public void testThroughput() throws Throwable {
+        XLua.HookTarget target = getTarget();
+        XLua.LuaMethodHook hook = new XLua().new LuaMethodHook(context, target.hook, target, settings);
+
+        // Warm up
+        for (int i = 0; i < ROUNDS; i++)
+            for (int threads : new int[]{1, 8, 64})
+                throughput(hook, target.member, threads);
+
+        for (int threads : new int[]{1, 8, 64})
+            System.out.println("Threads=" + threads +
+                    " invocations/s=" + Math.round(throughput(hook, target.member, threads)));
+    }
+
+    // Returns invocations per second, each thread checks the hook changed its own argument
+    private static double throughput(final XLua.LuaMethodHook hook, final Member member, int threads)
+            throws Throwable {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int calls = CALLS / threads;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String value = "thread" + t;
+            final String expected = value.toUpperCase();
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        XC_MethodHook.MethodHookParam param = newParam((Method) member, value);
+
+                        // Create the runtime of this thread
+                        hook.beforeHookedMethod(param);
+
+                        ready.countDown();
+                        start.await();
+
+                        for (int i = 0; i < calls; i++) {
+                            param.args[0] = value;
+                            hook.beforeHookedMethod(param);
+                            if (!expected.equals(param.args[0]))
+                                throw new AssertionError("Expected " + expected + " got " + param.args[0]);
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                        ready.countDown();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - begin;
+
+        if (failure.get() != null)
+            throw failure.get();
+        return calls * threads * 1e9 / elapsed;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    // Returns the bytes allocated by this thread per iteration
+    private static long allocated(com.sun.management.ThreadMXBean bean, Runnable runnable) {
+        long id = Thread.currentThread().getId();
+        long start = bean.getThreadAllocatedBytes(id);
+        runnable.run();
+        return (bean.getThreadAllocatedBytes(id) - start) / ITERATIONS;
+    }
+
+    // A builtin hook running the test script on Target.query
+    private static XLua.HookTarget getTarget() throws Exception {
+        XLua.HookTarget target = new XLua.HookTarget(TestHooks.readHooks().get(0));
+        target.script = LuaC.instance.compile(new ByteArrayInputStream(SCRIPT.getBytes()), "script");
+        target.member = Target.class.getMethod("query", String.class);
+        return target;
+    }
+
+    private static XLua.LuaRuntime newRuntime(XLua.HookTarget target, Method member) {
+        XLua.LuaRuntime runtime = new XLua.LuaRuntime(target, XLua.getGlobals(context, target.hook, settings));
+        runtime.bind(CoerceJavaToLua.coerce(target.hook), new XParam(context, member, settings));
+        return runtime;
+    }
+
+    private static XC_MethodHook.MethodHookParam newParam(Method member, String value) {
+        XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.method = member;
+        param.thisObject = new Target();
+        param.args = new Object[]{value};
+        return param;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PrepareHookTest {
+    // Classes with deep hierarchies, like the framework classes hooks target
+    private static final Class<?>[] CLASSES = new Class<?>[]{
+            java.util.LinkedHashMap.class, java.util.ArrayList.class, java.lang.StringBuilder.class,
+            java.util.Properties.class, java.io.BufferedInputStream.class, java.util.concurrent.ConcurrentHashMap.class};
+    private static final int ROUNDS = 9;
+
+    private static JSONObject builtin;
+
+    private static final ClassLoader loader = PrepareHookTest.class.getClassLoader();
+
+    @SuppressWarnings("unused")
+    public static class Target {
+        public static String FIELD = "field";
+
+        public String query(String value) {
+            return value;
+        }
+    }
+
+    @Test
+    public void testNativeActionSkipsScript() throws Exception {
+        XLua.HookTarget target = new XLua().prepareHook(
+                getHook("query", "block_method"), null, null, new HashMap<>(), loader);
+        assertNull(target.ex);
+        assertEquals(Target.class.getMethod("query", String.class), target.member);
+        assertNull(target.script);
+        assertNull(target.compiled);
+    }
+
+    @Test
+    public void testScriptWithoutNativeAction() throws Exception {
+        XLua.HookTarget target = new XLua().prepareHook(
+                getHook("query", null), null, null, new HashMap<>(), loader);
+        assertNull(target.ex);
+        assertEquals(Target.class.getMethod("query", String.class), target.member);
+        assertTrue(target.script != null || target.compiled != null);
+    }
+
+    @Test
+    public void testFieldRunsScriptWithNativeAction() throws Exception {
+        XLua.HookTarget target = new XLua().prepareHook(
+                getHook("#FIELD", "block_method"), null, null, new HashMap<>(), loader);
+        assertNull(target.ex);
+        assertEquals(Target.class.getField("FIELD"), target.field);
+        assertTrue(target.script != null || target.compiled != null);
+    }
+
+    @Test
+    public void testResolvedMembersAreCached() throws Exception {
+        // The cache is per class loader and lives as long as the loader
+        ClassLoader app = new ClassLoader(loader) {
+        };
+        XLua xlua = new XLua();
+        XLua.HookTarget first = xlua.prepareHook(getHook("query", null), null, null, new HashMap<>(), app);
+        XLua.HookTarget second = new XLua().prepareHook(getHook("query", null), null, null, new HashMap<>(), app);
+        assertEquals("walk", first.resolved);
+        assertEquals("cache", second.resolved);
+        assertNotNull(second.member);
+        assertEquals(first.member, second.member);
+
+        XLua.HookTarget other = xlua.prepareHook(
+                getHook("query", null), null, null, new HashMap<>(), new ClassLoader(loader) {
+                });
+        assertEquals("walk", other.resolved);
+    }
+
+    @Test
+    public void testHints() throws Exception {
+        XLua.HookTarget walked = new XLua().prepareHook(
+                getHook("query", null), null, null, new HashMap<>(), new ClassLoader(loader) {
+                });
+        String hint = XLua.getHint(walked.member);
+
+        XLua.HookTarget hinted = new XLua().prepareHook(
+                getHook("query", null), null, hint, new HashMap<>(), new ClassLoader(loader) {
+                });
+        assertEquals("hint", hinted.resolved);
+        assertEquals(walked.member, hinted.member);
+
+        // Stale hints fall back to walking the hierarchy
+        XLua.HookTarget stale = new XLua().prepareHook(
+                getHook("query", null), null, Object.class.getName(), new HashMap<>(), new ClassLoader(loader) {
+                });
+        assertEquals("walk", stale.resolved);
+        assertEquals(walked.member, stale.member);
+    }
+
+    @Test
+    public void testFailuresAreCached() throws Exception {
+        ClassLoader app = new ClassLoader(loader) {
+        };
+        XLua.HookTarget first = new XLua().prepareHook(getHook("missing", null), null, null, new HashMap<>(), app);
+        XLua.HookTarget second = new XLua().prepareHook(getHook("missing", null), null, null, new HashMap<>(), app);
+        assertTrue(first.ex instanceof NoSuchMethodException);
+        assertEquals("cache", second.resolved);
+        assertTrue(second.ex instanceof NoSuchMethodException);
+    }
+
+    // Install time of hooks on inherited overloads: walking, walking once per class loader and with hints
+    @Test
+    public void testInstallTime() throws Exception {
+        List<XHook> hooks = getHooks();
+        List<String> hints = new ArrayList<>();
+        for (XLua.HookTarget target : install(hooks, null, new ClassLoader(loader) {
+        })) {
+            assertNull(target.hook.getMethodName(), target.ex);
+            hints.add(XLua.getHint(target.member));
+        }
+
+        // Medians, single installs are easily disturbed by garbage collection
+        long[] walk = new long[ROUNDS];
+        long[] cache = new long[ROUNDS];
+        long[] hint = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            ClassLoader app = new ClassLoader(loader) {
+            };
+            long start = System.nanoTime();
+            install(hooks, null, app);
+            walk[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (XLua.HookTarget target : install(hooks, null, app))
+                assertEquals("cache", target.resolved);
+            cache[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (XLua.HookTarget target : install(hooks, hints, new ClassLoader(loader) {
+            }))
+                assertEquals("hint", target.resolved);
+            hint[i] = System.nanoTime() - start;
+        }
+
+        System.out.println("Hooks=" + hooks.size() +
+                " walk=" + median(walk) / 1000 + " us" +
+                " cache=" + median(cache) / 1000 + " us" +
+                " hint=" + median(hint) / 1000 + " us");
+    }
+
+    private static long median(long[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    private static List<XLua.HookTarget> install(List<XHook> hooks, List<String> hints, ClassLoader loader) {
+        XLua xlua = new XLua();
+        List<XLua.HookTarget> targets = new ArrayList<>();
+        for (int i = 0; i < hooks.size(); i++)
+            targets.add(xlua.prepareHook(
+                    hooks.get(i), null, (hints == null ? null : hints.get(i)), new HashMap<>(), loader));
+        return targets;
+    }
+
+    // Native action hooks on public class methods, named on the subclass
+    private static List<XHook> getHooks() throws Exception {
+        List<XHook> hooks = new ArrayList<>();
+        for (Class<?> cls : CLASSES) {
+            // Unit tests stub TextUtils.join, so the cached signatures don't tell overloads apart
+            Set<String> names = new HashSet<>();
+            for (Method method : cls.getMethods()) {
+                Class<?> declaring = method.getDeclaringClass();
+                if (Modifier.isStatic(method.getModifiers()) || declaring == Object.class || declaring.isInterface())
+                    continue;
+                boolean array = false;
+                JSONArray jparam = new JSONArray();
+                for (Class<?> param : method.getParameterTypes()) {
+                    array = array || param.isArray();
+                    jparam.put(param.getName());
+                }
+                if (array || !names.add(method.getName()))
+                    continue;
+
+                JSONObject jhook = getHook(cls, method.getName(), jparam, "block_method").toJSONObject();
+                jhook.remove("returnType");
+                hooks.add(XHook.fromJSONObject(jhook));
+            }
+        }
+        return hooks;
+    }
+
+    // A builtin hook retargeted to Target
+    private static XHook getHook(String methodName, String action) throws Exception {
+        JSONArray jparam = new JSONArray();
+        if (!methodName.startsWith("#"))
+            jparam.put(String.class.getName());
+        return getHook(Target.class, methodName, jparam, action);
+    }
+
+    private static XHook getHook(Class<?> cls, String methodName, JSONArray jparam, String action) throws Exception {
+        if (builtin == null)
+            builtin = TestHooks.readHooks().get(0).toJSONObject();
+        JSONObject jhook = new JSONObject(builtin.toString());
+        jhook.put("className", cls.getName());
+        jhook.remove("resolvedClassName");
+        jhook.put("methodName", methodName);
+        jhook.put("parameterTypes", jparam);
+        jhook.put("returnType", String.class.getName());
+        if (action == null)
+            jhook.remove("action");
+        else
+            jhook.put("action", action);
+        return XHook.fromJSONObject(jhook);
+    }
+}
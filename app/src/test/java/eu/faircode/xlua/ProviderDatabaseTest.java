@@ -0,0 +1,420 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+// The provider's schema and queries on a local SQLite database, the framework database needs a device
+public class ProviderDatabaseTest {
+    private static final int APPS = 300;
+    private static final int HOOKS = 190;
+    private static final int USERS = 4;
+    private static final int SETTINGS = 50;
+
+    // Reads per measurement, divided over the threads
+    private static final int READS = 32 * 50;
+    private static final int ROUNDS = 2;
+
+    private File dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = File.createTempFile("xlua", ".db");
+        dbFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (String suffix : new String[]{"", "-wal", "-shm", "-journal"})
+            new File(dbFile.getPath() + suffix).delete();
+    }
+
+    // getAssigned and getSettings from many apps launching at once
+    @Test
+    public void testConcurrentReads() throws Throwable {
+        Connection primary = open(false);
+        create(primary);
+        fill(primary);
+        primary.close();
+
+        // Exclusive transactions on the primary connection, like beginTransaction before
+        final Connection exclusive = open(false);
+        Reader serialized = new Reader() {
+            @Override
+            public int read(String packageName, int uid, int user) throws SQLException {
+                synchronized (exclusive) {
+                    execute(exclusive, "BEGIN EXCLUSIVE");
+                    try {
+                        return query(exclusive, packageName, uid, user);
+                    } finally {
+                        execute(exclusive, "COMMIT");
+                    }
+                }
+            }
+        };
+
+        // Write-ahead logging with a read connection per thread and no transaction
+        final List<Connection> pool = new ArrayList<>();
+        final ThreadLocal<Connection> threadConnection = new ThreadLocal<>();
+        Reader pooled = new Reader() {
+            @Override
+            public int read(String packageName, int uid, int user) throws SQLException {
+                Connection connection = threadConnection.get();
+                if (connection == null) {
+                    connection = open(true);
+                    threadConnection.set(connection);
+                    synchronized (pool) {
+                        pool.add(connection);
+                    }
+                }
+                return query(connection, packageName, uid, user);
+            }
+        };
+
+        try {
+            for (int i = 0; i < ROUNDS; i++)
+                for (int threads : new int[]{1, 8, 32}) {
+                    reads(serialized, threads);
+                    reads(pooled, threads);
+                }
+
+            for (int threads : new int[]{1, 8, 32})
+                System.out.println("Threads=" + threads +
+                        " exclusive reads/s=" + Math.round(reads(serialized, threads)) +
+                        " wal reads/s=" + Math.round(reads(pooled, threads)));
+        } finally {
+            exclusive.close();
+            for (Connection connection : pool)
+                connection.close();
+        }
+    }
+
+    // Restricting 300 apps with 190 hooks, an app per call before, all apps in one bulk call now
+    @Test
+    public void testBulkAssign() throws Throwable {
+        final Connection connection = open(true);
+        create(connection);
+        final Object lock = new Object();
+
+        Assigner single = new Assigner() {
+            @Override
+            public void assign(long sequence) throws SQLException {
+                for (int app = 0; app < APPS; app++) {
+                    connection.setAutoCommit(false);
+                    List<String> groups = new ArrayList<>();
+                    for (int hook = 0; hook < HOOKS; hook++) {
+                        synchronized (lock) {
+                            if (!groups.contains(getGroup(hook)))
+                                groups.add(getGroup(hook));
+                        }
+
+                        // insertWithOnConflict and delete build and compile their statement per call
+                        try (PreparedStatement stmt = connection.prepareStatement(
+                                "INSERT OR REPLACE INTO assignment" +
+                                        " (package, uid, hook, installed, used, restricted, exception, sequence)" +
+                                        " VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+                            stmt.setString(1, getPackage(app));
+                            stmt.setInt(2, getUid(app));
+                            stmt.setString(3, getHook(hook));
+                            stmt.setInt(4, -1);
+                            stmt.setInt(5, -1);
+                            stmt.setInt(6, 0);
+                            stmt.setNull(7, java.sql.Types.VARCHAR);
+                            stmt.setLong(8, ++sequence);
+                            stmt.executeUpdate();
+                        }
+                        try (PreparedStatement stmt = connection.prepareStatement(
+                                "DELETE FROM removal WHERE package = ? AND uid = ? AND hook = ?")) {
+                            stmt.setString(1, getPackage(app));
+                            stmt.setString(2, Integer.toString(getUid(app)));
+                            stmt.setString(3, getHook(hook));
+                            stmt.executeUpdate();
+                        }
+                    }
+                    for (String group : groups)
+                        try (PreparedStatement stmt = connection.prepareStatement(
+                                "DELETE FROM `group` WHERE package = ? AND uid = ? AND name = ?")) {
+                            stmt.setString(1, getPackage(app));
+                            stmt.setString(2, Integer.toString(getUid(app)));
+                            stmt.setString(3, group);
+                            stmt.executeUpdate();
+                        }
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
+            }
+        };
+
+        // The statements of assignHooksBulk, compiled once and rebound per row in one transaction
+        Assigner bulk = new Assigner() {
+            @Override
+            public void assign(long sequence) throws SQLException {
+                List<String> groups = new ArrayList<>();
+                synchronized (lock) {
+                    for (int hook = 0; hook < HOOKS; hook++)
+                        if (!groups.contains(getGroup(hook)))
+                            groups.add(getGroup(hook));
+                }
+
+                connection.setAutoCommit(false);
+                try (PreparedStatement stmtAssign = connection.prepareStatement(
+                        "INSERT OR REPLACE INTO assignment" +
+                                " (package, uid, hook, installed, used, restricted, exception, sequence)" +
+                                " VALUES (?, ?, ?, -1, -1, 0, NULL, ?)");
+                     PreparedStatement stmtRemoved = connection.prepareStatement(
+                             "DELETE FROM removal WHERE package = ? AND uid = ? AND hook = ?");
+                     PreparedStatement stmtGroup = connection.prepareStatement(
+                             "DELETE FROM `group` WHERE package = ? AND uid = ? AND name = ?")) {
+                    for (int app = 0; app < APPS; app++) {
+                        for (int hook = 0; hook < HOOKS; hook++) {
+                            stmtAssign.setString(1, getPackage(app));
+                            stmtAssign.setLong(2, getUid(app));
+                            stmtAssign.setString(3, getHook(hook));
+                            stmtAssign.setLong(4, ++sequence);
+                            stmtAssign.executeUpdate();
+
+                            stmtRemoved.setString(1, getPackage(app));
+                            stmtRemoved.setLong(2, getUid(app));
+                            stmtRemoved.setString(3, getHook(hook));
+                            stmtRemoved.executeUpdate();
+                        }
+                        for (String group : groups) {
+                            stmtGroup.setString(1, getPackage(app));
+                            stmtGroup.setLong(2, getUid(app));
+                            stmtGroup.setString(3, group);
+                            stmtGroup.executeUpdate();
+                        }
+                    }
+                }
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+        };
+
+        try {
+            long[] singleTimes = new long[ROUNDS];
+            long[] bulkTimes = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                singleTimes[i] = assign(connection, single);
+                bulkTimes[i] = assign(connection, bulk);
+            }
+            Arrays.sort(singleTimes);
+            Arrays.sort(bulkTimes);
+
+            System.out.println("Assignments=" + APPS * HOOKS +
+                    " per app=" + singleTimes[ROUNDS / 2] / 1000000 + " ms" +
+                    " bulk=" + bulkTimes[ROUNDS / 2] / 1000000 + " ms");
+        } finally {
+            connection.close();
+        }
+    }
+
+    private interface Assigner {
+        void assign(long sequence) throws SQLException;
+    }
+
+    // Returns nanoseconds to assign every hook to every app, from an empty assignment table
+    private static long assign(Connection connection, Assigner assigner) throws SQLException {
+        execute(connection, "DELETE FROM assignment");
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT OR REPLACE INTO `group` (package, uid, name, used) VALUES (?, ?, ?, 1)")) {
+            stmt.setString(1, getPackage(0));
+            stmt.setInt(2, getUid(0));
+            stmt.setString(3, getGroup(0));
+            stmt.executeUpdate();
+        }
+
+        long start = System.nanoTime();
+        assigner.assign(0);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(APPS * HOOKS, count(connection, "SELECT COUNT(*) FROM assignment"));
+        assertEquals(0, count(connection, "SELECT COUNT(*) FROM `group`"));
+        return elapsed;
+    }
+
+    private static int count(Connection connection, String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private interface Reader {
+        // Returns the number of assignments and settings read
+        int read(String packageName, int uid, int user) throws SQLException;
+    }
+
+    // Returns reads per second, each read checks it got every assignment and setting
+    private static double reads(final Reader reader, int threads) throws Throwable {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int reads = READS / threads;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < reads; i++) {
+                            int app = (offset * reads + i) % APPS;
+                            int count = reader.read(getPackage(app), getUid(app), getUser(app));
+                            if (count != HOOKS + SETTINGS)
+                                throw new AssertionError("Read " + count);
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - begin;
+
+        if (failure.get() != null)
+            throw failure.get();
+        return reads * threads * 1e9 / elapsed;
+    }
+
+    // The queries of getAssigned and getSettings
+    private static int query(Connection connection, String packageName, int uid, int user) throws SQLException {
+        int count = 0;
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT hook, used FROM assignment WHERE package = ? AND uid = ? ORDER BY hook")) {
+            stmt.setString(1, packageName);
+            stmt.setInt(2, uid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    count++;
+            }
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT category, name, value FROM setting WHERE user = ?")) {
+            stmt.setInt(1, user);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private Connection open(boolean wal) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+        execute(connection, "PRAGMA journal_mode = " + (wal ? "WAL" : "DELETE"));
+        return connection;
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    // The tables of database version 8
+    private static void create(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE assignment (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, installed INTEGER, used INTEGER, restricted INTEGER, exception TEXT, old TEXT, new TEXT, sequence INTEGER)");
+        execute(connection, "CREATE UNIQUE INDEX idx_assignment ON assignment(package, uid, hook)");
+        execute(connection, "CREATE INDEX idx_assignment_used ON assignment(used)");
+        execute(connection, "CREATE INDEX idx_assignment_sequence ON assignment(sequence)");
+        execute(connection, "CREATE TABLE setting (user INTEGER, category TEXT NOT NULL, name TEXT NOT NULL, value TEXT)");
+        execute(connection, "CREATE UNIQUE INDEX idx_setting ON setting(user, category, name)");
+        execute(connection, "CREATE TABLE `group` (package TEXT NOT NULL, uid INTEGER NOT NULL, name TEXT NOT NULL, used INTEGER)");
+        execute(connection, "CREATE UNIQUE INDEX idx_group ON `group`(package, uid, name)");
+        execute(connection, "CREATE TABLE removal (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL, sequence INTEGER NOT NULL)");
+        execute(connection, "CREATE UNIQUE INDEX idx_removal ON removal(package, uid, hook)");
+        execute(connection, "CREATE INDEX idx_removal_sequence ON removal(sequence)");
+    }
+
+    // Every hook assigned to every app and the settings of each user
+    private static void fill(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO assignment (package, uid, hook, installed, used, restricted, exception, sequence)" +
+                        " VALUES (?, ?, ?, -1, -1, 0, NULL, 0)")) {
+            for (int app = 0; app < APPS; app++)
+                for (int hook = 0; hook < HOOKS; hook++) {
+                    stmt.setString(1, getPackage(app));
+                    stmt.setInt(2, getUid(app));
+                    stmt.setString(3, getHook(hook));
+                    stmt.executeUpdate();
+                }
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO setting (user, category, name, value) VALUES (?, ?, ?, ?)")) {
+            for (int user = 0; user < USERS; user++)
+                for (int setting = 0; setting < SETTINGS; setting++) {
+                    stmt.setInt(1, user);
+                    stmt.setString(2, "global");
+                    stmt.setString(3, "setting" + setting);
+                    stmt.setString(4, "value" + setting);
+                    stmt.executeUpdate();
+                }
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    private static String getPackage(int app) {
+        return "com.example.app" + app;
+    }
+
+    private static int getUid(int app) {
+        return getUser(app) * 100000 + 10000 + app;
+    }
+
+    private static int getUser(int app) {
+        return app % USERS;
+    }
+
+    private static String getHook(int hook) {
+        return "Hook.method" + hook;
+    }
+
+    private static String getGroup(int hook) {
+        return "Group" + hook / 10;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.ContextWrapper;
+import android.content.pm.ApplicationInfo;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builtin hooks and an app context for plain JVM tests
+class TestHooks {
+    static final String PACKAGE = "eu.faircode.xlua.test";
+    static final int UID = 10001;
+
+    static class TestContext extends ContextWrapper {
+        TestContext() {
+            super(null);
+        }
+
+        @Override
+        public String getPackageName() {
+            return PACKAGE;
+        }
+
+        @Override
+        public ApplicationInfo getApplicationInfo() {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = PACKAGE;
+            info.uid = UID;
+            return info;
+        }
+    }
+
+    // Hooks of hooks.json with their scripts linked like XHook.readHooks does
+    static List<XHook> readHooks() throws Exception {
+        // The JVM JSON parser doesn't skip comments like the Android one does
+        StringBuilder sb = new StringBuilder();
+        String json = read(new File(getAssets(), "hooks.json"));
+        for (String line : json.substring(json.indexOf('[')).split("\\r?\\n"))
+            if (!line.trim().startsWith("//"))
+                sb.append(line).append('\n');
+        JSONArray jarray = new JSONArray(sb.toString());
+        List<XHook> hooks = new ArrayList<>();
+        for (int i = 0; i < jarray.length(); i++) {
+            JSONObject jhook = jarray.getJSONObject(i);
+            String script = jhook.getString("luaScript");
+            if (script.startsWith("@"))
+                jhook.put("luaScript", readScript(script.substring(1)));
+            hooks.add(XHook.fromJSONObject(jhook));
+        }
+        return hooks;
+    }
+
+    // Compile each distinct script once, like prepareHook does
+    static List<XLua.HookTarget> getTargets(List<XHook> hooks) throws Exception {
+        Map<String, Prototype> prototypes = new HashMap<>();
+        List<XLua.HookTarget> targets = new ArrayList<>();
+        for (XHook hook : hooks) {
+            Prototype script = prototypes.get(hook.getLuaScript());
+            if (script == null) {
+                script = LuaC.instance.compile(
+                        new ByteArrayInputStream(hook.getLuaScript().getBytes(StandardCharsets.UTF_8)), "script");
+                prototypes.put(hook.getLuaScript(), script);
+            }
+            XLua.HookTarget target = new XLua.HookTarget(hook);
+            target.script = script;
+            targets.add(target);
+        }
+        return targets;
+    }
+
+    static String readScript(String name) throws IOException {
+        return read(new File(getAssets(), name + ".lua"));
+    }
+
+    // Unit tests run in the module directory, fall back to the project directory
+    private static File getAssets() {
+        File assets = new File("src/main/assets");
+        return (assets.isDirectory() ? assets : new File("app/src/main/assets"));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+    This file is part of XPrivacyLua.
+
+    XPrivacyLua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacyLua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacyLua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2019 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.CoerceJavaToLua;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class XActionTest {
+    private static final int WARMUP = 10;
+    private static final int ITERATIONS = 100000;
+    private static final int ROUNDS = 5;
+
+    private static final Context context = new TestHooks.TestContext();
+    private static final Map<String, String> settings = new HashMap<>();
+
+    @SuppressWarnings("unused")
+    public static class Target {
+        public String string() {
+            return null;
+        }
+
+        public int number() {
+            return 0;
+        }
+
+        public boolean bool() {
+            return false;
+        }
+
+        public String[] array() {
+            return null;
+        }
+
+        public List<String> list() {
+            return null;
+        }
+    }
+
+    // Native actions report the same restriction, result and values as the scripts they replace
+    @Test
+    public void testActionsMatchScripts() throws Throwable {
+        check("block_method", "string", "value");
+        check("null_value", "string", "value", null);
+        check("unknown_value", "string", "value", null);
+        check("country_value", "string", "value", null);
+        check("operator_value", "string", "value", null);
+        check("mcc_value", "number", 262, 0);
+        check("mnc_value", "number", 1, 0);
+        check("zero_value", "number", 5, 0);
+        check("false_value", "bool", true, false);
+
+        // The empty_string_array and empty_list scripts bind java.lang.reflect.Array,
+        // which LuaJ can't make accessible on desktop JVMs with modules
+        checkNative(XAction.get("empty_string_array"), "array", new String[]{"value"}, new String[0], null);
+        checkNative(XAction.get("empty_list"), "list", new ArrayList<>(Collections.singletonList("value")), new ArrayList<>());
+    }
+
+    private static void check(String action, String method, Object... results) throws Throwable {
+        XLua.HookTarget target = getTarget(action, method, true);
+        XLua.LuaRuntime runtime = new XLua.LuaRuntime(target, XLua.getGlobals(context, target.hook, settings));
+        runtime.bind(CoerceJavaToLua.coerce(target.hook), new XParam(context, target.member, settings));
+        XAction xaction = XAction.get(action);
+        assertNotNull(action, xaction);
+        LuaValue func = runtime.getFunction(xaction.getFunction());
+
+        for (Object result : results) {
+            XC_MethodHook.MethodHookParam lua = newParam(target.member, result);
+            Varargs restricted = runtime.invoke(func, lua);
+
+            XC_MethodHook.MethodHookParam param = newParam(target.member, result);
+            XParam xparam = new XParam(context, target.member, settings);
+            xparam.bind(param);
+            String[] values = xaction.execute(xparam);
+
+            String name = action + " " + toString(result);
+            assertEquals(name, restricted.arg1().checkboolean(), values != null);
+            assertArrayEquals(name, new Object[]{lua.getResult()}, new Object[]{param.getResult()});
+            if (values != null && values.length > 0) {
+                assertEquals(name, restricted.optjstring(2, null), values[0]);
+                assertEquals(name, restricted.optjstring(3, null), values[1]);
+            } else if (values != null)
+                assertEquals(name, 1, restricted.narg());
+        }
+    }
+
+    private static void checkNative(XAction xaction, String method, Object restricted, Object... results) throws Throwable {
+        XC_MethodHook.MethodHookParam param = newParam(Target.class.getMethod(method), restricted);
+        XParam xparam = new XParam(context, param.method, settings);
+        xparam.bind(param);
+        assertArrayEquals(XAction.NO_VALUES, xaction.execute(xparam));
+        Object empty = param.getResult();
+        assertEquals(0, empty instanceof List ? ((List<?>) empty).size() : ((Object[]) empty).length);
+
+        for (Object result : results) {
+            param.setResult(result);
+            assertNull(xaction.execute(xparam));
+            assertEquals(result, param.getResult());
+        }
+    }
+
+    // Per call cost of a generic script and its native action through the installed hooks
+    @Test
+    public void testNativeAndLuaPerCall() throws Throwable {
+        XLua xlua = new XLua();
+        XLua.HookTarget target = getTarget("unknown_value", "string", false);
+        XC_MethodHook lua = xlua.new LuaMethodHook(context, target.hook, target, settings);
+        XC_MethodHook xnative = xlua.new NativeMethodHook(context, target.hook, target.member, settings);
+        XC_MethodHook.MethodHookParam param = newParam(target.member, "value");
+
+        long[] luaTimes = new long[ROUNDS];
+        long[] nativeTimes = new long[ROUNDS];
+        for (int i = 0; i < WARMUP; i++) {
+            perCall(lua, param);
+            perCall(xnative, param);
+        }
+        for (int i = 0; i < ROUNDS; i++) {
+            luaTimes[i] = perCall(lua, param);
+            nativeTimes[i] = perCall(xnative, param);
+        }
+        Arrays.sort(luaTimes);
+        Arrays.sort(nativeTimes);
+
+        System.out.println("Per call lua=" + luaTimes[ROUNDS / 2] + " ns" +
+                " native=" + nativeTimes[ROUNDS / 2] + " ns");
+    }
+
+    // Returns nanoseconds per call, checking the hook restricted the result
+    private static long perCall(XC_MethodHook hook, XC_MethodHook.MethodHookParam param) throws Throwable {
+        Method after = XC_MethodHook.class.getDeclaredMethod("afterHookedMethod", XC_MethodHook.MethodHookParam.class);
+        after.setAccessible(true);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            param.setResult("value");
+            after.invoke(hook, param);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals("unknown", param.getResult());
+        return elapsed / ITERATIONS;
+    }
+
+    // A builtin hook running a generic script or its native action on a Target method
+    private static XLua.HookTarget getTarget(String action, String method, boolean usage) throws Exception {
+        JSONObject jhook = TestHooks.readHooks().get(0).toJSONObject();
+        jhook.put("className", Target.class.getName());
+        jhook.remove("resolvedClassName");
+        jhook.put("methodName", method);
+        jhook.put("parameterTypes", new JSONArray());
+        jhook.remove("returnType");
+        jhook.put("luaScript", TestHooks.readScript("generic_" + action));
+        jhook.put("action", action);
+        jhook.put("usage", usage);
+        XHook hook = XHook.fromJSONObject(jhook);
+
+        XLua.HookTarget target = new XLua.HookTarget(hook);
+        target.script = LuaC.instance.compile(new ByteArrayInputStream(hook.getLuaScript().getBytes()), "script");
+        target.member = Target.class.getMethod(method);
+        return target;
+    }
+
+    private static XC_MethodHook.MethodHookParam newParam(Member member, Object result) {
+        XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.method = member;
+        param.thisObject = new Target();
+        param.args = new Object[0];
+        param.setResult(result);
+        return param;
+    }
+
+    private static String toString(Object value) {
+        return (value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value));
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+* Copyright (c) 2009 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Runs coroutine.lua, which checks the results of coroutines in lua, 
+ * in every {@link LuaThread#coroutine_mode}.
+ */
+public class CoroutineTest {
+	private final int mode = LuaThread.coroutine_mode;
+
+	@After
+	public void restoreMode() {
+		LuaThread.coroutine_mode = mode;
+	}
+
+	@Test
+	public void testStackless() throws Exception {
+		assertEquals("ok", run(LuaThread.COROUTINE_STACKLESS));
+	}
+
+	@Test
+	public void testVirtual() throws Exception {
+		assertEquals("ok", run(LuaThread.COROUTINE_VIRTUAL));
+	}
+
+	@Test
+	public void testPlatform() throws Exception {
+		assertEquals("ok", run(LuaThread.COROUTINE_PLATFORM));
+	}
+
+	@Test
+	public void testDefaultYieldsAcrossJava() {
+		assertEquals("meta,123,xpcall,pcall", yieldAcrossJava());
+	}
+
+	@Test
+	public void testStacklessYieldsAcrossJava() {
+		LuaThread.coroutine_mode = LuaThread.COROUTINE_STACKLESS;
+		assertEquals("meta,123,xpcall,pcall", yieldAcrossJava());
+	}
+
+	@Test
+	public void testStacklessSuspendsWithoutThreads() {
+		LuaThread.coroutine_mode = LuaThread.COROUTINE_STACKLESS;
+		int count = LuaThread.coroutine_count;
+		Globals globals = JsePlatform.standardGlobals();
+		LuaValue result = globals.load(
+			"local cos = {}\n" +
+			"for i = 1, 1000 do cos[i] = coroutine.create(function(a) local b = coroutine.yield(a) return a + b end) end\n" +
+			"for i = 1, 1000 do assert(select(2, coroutine.resume(cos[i], i)) == i) end\n" +
+			"local sum = 0\n" +
+			"for i = 1, 1000 do sum = sum + select(2, coroutine.resume(cos[i], 1)) end\n" +
+			"return sum", "suspend.lua").call();
+		assertEquals(1000 * 1001 / 2 + 1000, result.toint());
+		assertEquals(count, LuaThread.coroutine_count);
+	}
+
+	private String yieldAcrossJava() {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaValue result = globals.load(
+			"local r = {}\n" +
+			"local mt = { __index = function(t, k) return coroutine.yield(k) end }\n" +
+			"r[#r+1] = coroutine.wrap(function() return setmetatable({}, mt).meta end)()\n" +
+			"local sort = coroutine.wrap(function() local t = {3, 1, 2} table.sort(t, function(a, b) coroutine.yield('sort') return a < b end) return table.concat(t) end)\n" +
+			"local s repeat s = sort() until s ~= 'sort'\n" +
+			"r[#r+1] = s\n" +
+			"r[#r+1] = coroutine.wrap(function() return xpcall(function() return coroutine.yield('xpcall') end, print) end)()\n" +
+			"r[#r+1] = coroutine.wrap(function() return pcall(coroutine.yield, 'pcall') end)()\n" +
+			"return table.concat(r, ',')", "yield.lua").call();
+		return result.tojstring();
+	}
+
+	private String run(int mode) throws Exception {
+		LuaThread.coroutine_mode = mode;
+		Globals globals = JsePlatform.standardGlobals();
+		InputStream is = getClass().getResourceAsStream("coroutine.lua");
+		try {
+			return globals.load(is, "coroutine.lua", "t", globals).call().tojstring();
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+* Copyright (c) 2009 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Runs a script through the plain and the debug interpreter loop of {@link LuaClosure}.
+ */
+public class LuaClosureTest {
+	private static final String SCRIPT =
+		"local s = 0\n" +
+		"local function counter()\n" +
+		"  local n = 0\n" +
+		"  return function() n = n + 1 return n end\n" +
+		"end\n" +
+		"local c = counter()\n" +
+		"for i = 1, 100 do\n" +
+		"  if i % 3 == 0 then s = s + c() else s = s + i end\n" +
+		"end\n" +
+		"local ok, err = pcall(function() error('x') end)\n" +
+		"return s, ok, c()";
+
+	@Test
+	public void testPlainAndDebugLoopsAgree() {
+		Varargs plain = JsePlatform.standardGlobals().load(SCRIPT).invoke();
+		Varargs debug = JsePlatform.debugGlobals().load(SCRIPT).invoke();
+		assertEquals(3928, plain.arg1().toint());
+		assertEquals(false, plain.arg(2).toboolean());
+		assertEquals(34, plain.arg(3).toint());
+		for (int i = 1; i <= 3; i++)
+			assertEquals(plain.arg(i), debug.arg(i));
+	}
+
+	@Test
+	public void testDebugHooksOnlyWithDebugGlobals() {
+		Globals globals = JsePlatform.debugGlobals();
+		globals.load(
+			"calls, lines = 0, 0\n" +
+			"debug.sethook(function(event) if event == 'call' then calls = calls + 1 else lines = lines + 1 end end, 'cl')").call();
+		globals.load(SCRIPT).call();
+		globals.load("debug.sethook()").call();
+		assertTrue(globals.get("calls").toint() > 0);
+		assertTrue(globals.get("lines").toint() > 100);
+
+		Globals plain = JsePlatform.standardGlobals();
+		assertTrue(plain.debuglib == null);
+		assertEquals(3928, plain.load(SCRIPT).call().toint());
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+* Copyright (c) 2009 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Compares the result of differential.lua interpreted by {@link LuaClosure}
+ * with the result of its translation by {@link JavaGen}.
+ */
+public class JavaGenTest {
+
+	@Test
+	public void testDifferential() throws Exception {
+		byte[] script = read("differential.lua");
+		Prototype p = LuaC.instance.compile(new ByteArrayInputStream(script), "script");
+
+		String interpreted = new LuaClosure(p, JsePlatform.standardGlobals()).call().tojstring();
+		String generated = load(JavaGen.generate(p, "luajc.test", "Lua_differential", "script", "differential.lua"),
+			"luajc.test.Lua_differential", JsePlatform.standardGlobals()).call().tojstring();
+
+		assertTrue(interpreted, interpreted.contains("line\nbreak"));
+		assertEquals(interpreted, generated);
+	}
+
+	/** Compile a generated class and create its main chunk */
+	private static LuaValue load(String source, String classname, Globals globals) throws Exception {
+		File dir = Files.createTempDirectory("luajc").toFile();
+		File file = new File(dir, classname.replace('.', File.separatorChar) + ".java");
+		file.getParentFile().mkdirs();
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(source.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		int rc = compiler.run(null, null, null, "-nowarn", "-encoding", "UTF-8",
+			"-cp", System.getProperty("java.class.path"), "-d", dir.getPath(), file.getPath());
+		assertEquals("javac of generated source", 0, rc);
+
+		ClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, JavaGenTest.class.getClassLoader());
+		Constructor<?> c = loader.loadClass(classname).getDeclaredConstructor(LuaValue.class);
+		c.setAccessible(true);
+		return (LuaValue) c.newInstance(globals);
+	}
+
+	private byte[] read(String name) throws Exception {
+		InputStream is = getClass().getResourceAsStream(name);
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			for (int n; (n = is.read(buf)) > 0; )
+				bos.write(buf, 0, n);
+			return bos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+-- Coroutine behavior which must be the same for every LuaThread.coroutine_mode, returns "ok"
+local function check(expected, ...)
+  local t = {}
+  for i = 1, select('#', ...) do t[#t+1] = (tostring((select(i, ...))):gsub("^[%w%.]+:%d+ ", "")) end
+  local got = table.concat(t, ",")
+  if got ~= expected then error("expected '" .. expected .. "' got '" .. got .. "'", 2) end
+end
+
+-- generator
+local function gen(n) return coroutine.wrap(function() for i = 1, n do coroutine.yield(i) end return "done" end) end
+local g = {}
+for v in gen(3) do g[#g+1] = v if v == "done" then break end end
+check("1,2,3,done", g[1], g[2], g[3], g[4])
+
+-- resume args and yield results, nested lua calls
+local co = coroutine.create(function(a, b)
+  local function inner(x) local y = coroutine.yield(x + 1) return y * 2 end
+  local r = inner(a + b)
+  local c, d = coroutine.yield(r)
+  return c + d, "end"
+end)
+check("true,4", coroutine.resume(co, 1, 2))
+check("suspended", coroutine.status(co))
+check("true,20", coroutine.resume(co, 10))
+check("true,7,end", coroutine.resume(co, 3, 4))
+check("dead,false,cannot resume dead coroutine", coroutine.status(co), coroutine.resume(co))
+
+-- tail yield
+local t = coroutine.create(function() return coroutine.yield("t") end)
+check("true,t", coroutine.resume(t))
+check("true,back,2", coroutine.resume(t, "back", 2))
+check("dead", coroutine.status(t))
+
+-- upvalues across yields
+local acc = coroutine.wrap(function() local s = 0 local f = function(x) s = s + x return s end while true do local x = coroutine.yield(f) ; f(x) end end)
+local f = acc() acc(5) acc(7)
+check("12", f(0))
+
+-- nested coroutines
+local outer = coroutine.wrap(function()
+  local inner = coroutine.wrap(function() coroutine.yield("i1") coroutine.yield("i2") end)
+  coroutine.yield(inner()) coroutine.yield(inner())
+  return coroutine.running() ~= nil, select(2, coroutine.running())
+end)
+check("i1,i2,true,false", outer(), outer(), outer())
+
+-- errors
+local e = coroutine.create(function() local x = nil; coroutine.yield(1); return x.y end)
+check("true,1", coroutine.resume(e))
+check("false,attempt to index ? (a nil value)", coroutine.resume(e))
+check("dead", coroutine.status(e))
+
+-- yield across pcall
+local pc = coroutine.create(function() return pcall(function() coroutine.yield(1) end) end)
+check("true,1", coroutine.resume(pc))
+check("true,true", coroutine.resume(pc))
+
+-- yield from a lua iterator of a for-in loop
+local it = coroutine.wrap(function()
+  local function iter(s, i) if i < 3 then coroutine.yield("it" .. i) return i + 1 end end
+  for i in iter, nil, 0 do end
+  return "itdone"
+end)
+check("it0,it1,it2,itdone", it(), it(), it(), it())
+
+-- varargs and multiple results
+local va = coroutine.wrap(function(...) local n = select('#', ...) local a, b = coroutine.yield(n, ...) return {a, b}, ... end)
+check("3,1,nil,3", va(1, nil, 3))
+check("2", #(va("x", "y")))
+
+-- recursion inside a coroutine
+local deep = coroutine.wrap(function() local function r(n) if n == 0 then return coroutine.yield("deep") end return r(n - 1) + 0 end return r(150) end)
+check("deep", deep())
+check("1", deep(1))
+
+-- wrap of a Java function
+check("2", coroutine.wrap(function(...) return select('#', ...) end)(1, 2))
+check("true,3", pcall(coroutine.wrap(string.len), "abc"))
+
+-- pcall inside coroutines
+local pe = coroutine.wrap(function()
+  local ok, v = pcall(function(a) local x = coroutine.yield(a) if x == "boom" then error("bad") end return x end, "pa")
+  coroutine.yield(tostring(ok) .. ":" .. tostring(v))
+  local ok2, v2 = pcall(function() local y = coroutine.yield("pb") error({code = y}) end)
+  coroutine.yield(tostring(ok2) .. ":" .. tostring(type(v2) == "table" and v2.code))
+  return pcall(function() return coroutine.yield("tail") end)
+end)
+check("pa,false:bad,pb,false:42,tail,true,z", pe(), (pe("boom"):gsub("[%w%.]+:%d+ ", "")), pe(), pe(42), pe(), pe("z"))
+local pn = coroutine.wrap(function() return pcall(pcall, function() coroutine.yield("n") error("e2") end) end)
+check("n", pn())
+check("true,false,e2", pn())
+local pt = coroutine.wrap(function()
+  local a = {pcall(function() return error("tailerr") end)}
+  local b = {pcall(function() local function g(x) return coroutine.yield(x) end return g("gy") end)}
+  local c = {pcall(function() local function g() error("deep") end return g() end)}
+  return tostring(a[1]) .. ":" .. a[2]:gsub("^[%w%.]+:%d+ ", "") .. "|" .. tostring(b[1]) .. tostring(b[2]) .. "|" .. tostring(c[1]) .. ":" .. c[2]:gsub("^[%w%.]+:%d+ ", "")
+end)
+check("gy", pt())
+check("false:tailerr|truer|false:deep", pt("r"))
+
+-- nested pcall of a Java function
+check("true,false,x", pcall(pcall, error, "x"))
+check("true,false,x,nil", coroutine.wrap(function() local r = {pcall(pcall, error, "x")} return table.unpack(r, 1, 4) end)())
+check("true,false,x", coroutine.wrap(function() return pcall(pcall, error, "x") end)())
+check("true,true,true,7", coroutine.wrap(function() return pcall(pcall, pcall, tonumber, "7") end)())
+
+return "ok"
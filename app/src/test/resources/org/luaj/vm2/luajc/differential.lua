@@ -0,0 +1,80 @@
+-- Script which must give the same result interpreted and translated by JavaGen
+local out = {}
+local function p(...)
+  local t = {}
+  for i = 1, select('#', ...) do t[#t+1] = tostring((select(i, ...))) end
+  out[#out+1] = table.concat(t, ",")
+end
+
+-- constants, including escaped and non-ASCII strings
+p(1, 2.5, -3, 1e300, 0x10, true, false, nil)
+p("plain", "quote\"d", "back\\slash", "tab\there", "line\nbreak", "nul\0byte", "\1\127\255", "caf\195\169", "ü€")
+p(#"line\nbreak", #"nul\0byte", #"ü€", ("\255"):byte(), ("caf\195\169"):upper())
+
+-- arithmetic and comparison
+local a, b = 7, 3
+p(a + b, a - b, a * b, a / b, a % b, a ^ b, -a, a == b, a < b, a <= b, a > b, not a, a .. b)
+
+-- tables, lengths and concat
+local t = {1, 2, 3, x = "y", [10] = "ten"}
+t[#t + 1] = 4
+p(#t, t.x, t[10], table.concat(t, "-"))
+
+-- loops
+local s = 0
+for i = 1, 10 do s = s + i end
+for i = 10, 1, -3 do s = s + i end
+for k, v in ipairs(t) do s = s + v end
+local n = 0
+while n < 5 do n = n + 1 end
+repeat n = n - 2 until n < 0
+p(s, n)
+
+-- closures and upvalues
+local function counter()
+  local c = 0
+  return function(d) c = c + (d or 1) return c end
+end
+local c1, c2 = counter(), counter()
+c1() c1(5) c2()
+p(c1(0), c2(0))
+local fs = {}
+for i = 1, 3 do fs[i] = function() return i end end
+p(fs[1](), fs[2](), fs[3]())
+
+-- varargs and multiple results
+local function va(...) return select('#', ...), ... end
+p(va(1, nil, 3))
+local function multi() return 1, 2, 3 end
+p(multi(), (multi()))
+p(({multi(), multi()})[4])
+
+-- methods and metatables
+local obj = setmetatable({v = 2}, {
+  __index = { get = function(self) return self.v end, twice = function(self, x) return self.v * x end },
+  __add = function(x, y) return x.v + y end,
+  __tostring = function() return "obj" end,
+})
+p(obj:get(), obj:twice(21), obj + 1, tostring(obj))
+p(("abc"):rep(2), ("x=%d"):format(5), string.format("%q", "a\nb"))
+
+-- errors with line information
+p(pcall(function() local x = nil return x.y end))
+p(pcall(error, "msg"))
+p(select(2, pcall(error, {code = 1})).code)
+
+-- recursion and tail calls
+local function fact(k) if k <= 1 then return 1 end return k * fact(k - 1) end
+local function loop(k, acc) if k == 0 then return acc end return loop(k - 1, acc + 1) end
+p(fact(10), loop(1000, 0))
+
+-- goto
+do
+  local i = 0
+  ::top::
+  i = i + 1
+  if i < 3 then goto top end
+  p("goto", i)
+end
+
+return table.concat(out, "\n")